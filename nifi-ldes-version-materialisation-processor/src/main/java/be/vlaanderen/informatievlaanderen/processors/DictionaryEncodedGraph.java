@@ -0,0 +1,190 @@
+package be.vlaanderen.informatievlaanderen.processors;
+
+import org.eclipse.rdf4j.model.*;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.rio.*;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * A graph of which the terms are interned into int IDs, and the triples are stored as rows of term IDs
+ * in primitive arrays. Version materialisation is an int to int remap of the rows, statement objects are only
+ * created again while serialising.
+ * Like {@link VersionMaterialiser#versionMaterialise(Model, IRI)}, contexts are dropped. Duplicate triples are not
+ * removed.
+ */
+public class DictionaryEncodedGraph {
+    public static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    private final Map<Value, Integer> termIDs = new HashMap<>();
+    private final List<Value> terms = new ArrayList<>();
+
+    private int[] subjects = new int[1024];
+    private int[] predicates = new int[1024];
+    private int[] objects = new int[1024];
+    private int size = 0;
+
+    /**
+     * Parses N-Quads into a dictionary encoded graph.
+     *
+     * @param in The N-Quads.
+     * @return The graph.
+     */
+    public static DictionaryEncodedGraph parse(InputStream in) throws IOException {
+        DictionaryEncodedGraph graph = new DictionaryEncodedGraph();
+        RDFParser parser = Rio.createParser(RDFFormat.NQUADS);
+        parser.setRDFHandler(new AbstractRDFHandler() {
+            @Override
+            public void handleStatement(Statement statement) {
+                graph.add(statement.getSubject(), statement.getPredicate(), statement.getObject());
+            }
+        });
+        parser.parse(in);
+        return graph;
+    }
+
+    public void add(Resource subject, IRI predicate, Value object) {
+        if (size == subjects.length) {
+            int capacity = size * 2;
+            subjects = Arrays.copyOf(subjects, capacity);
+            predicates = Arrays.copyOf(predicates, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+        }
+        subjects[size] = intern(subject);
+        predicates[size] = intern(predicate);
+        objects[size] = intern(object);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int intern(Value term) {
+        Integer termID = termIDs.get(term);
+        if (termID == null) {
+            termID = terms.size();
+            termIDs.put(term, termID);
+            terms.add(term);
+        }
+        return termID;
+    }
+
+    /**
+     * Replaces version IDs by their entity ID, in subject and object position, and removes the isVersionOf triples.
+     *
+     * @param versionPredicate The isVersionOf predicate.
+     */
+    public void versionMaterialise(IRI versionPredicate) {
+        Integer versionPredicateID = termIDs.get(versionPredicate);
+        if (versionPredicateID == null)
+            return;
+
+        int[] remap = new int[terms.size()];
+        for (int termID = 0; termID < remap.length; termID++)
+            remap[termID] = termID;
+        for (int row = 0; row < size; row++) {
+            if (predicates[row] != versionPredicateID)
+                continue;
+            if (!terms.get(objects[row]).isIRI()) {
+                throw new RuntimeException(String.format(
+                        "Statement <subject: %s predicate: %s> should have object identifier as object.",
+                        terms.get(subjects[row]).toString(),
+                        versionPredicate.toString()
+                ));
+            }
+            remap[subjects[row]] = objects[row];
+        }
+
+        int keptRows = 0;
+        for (int row = 0; row < size; row++) {
+            // Don't keep isVersionOf triples.
+            if (predicates[row] == versionPredicateID)
+                continue;
+            subjects[keptRows] = remap[subjects[row]];
+            predicates[keptRows] = predicates[row];
+            objects[keptRows] = remap[objects[row]];
+            keptRows++;
+        }
+        size = keptRows;
+    }
+
+    /**
+     * Limits the graph to the triples about the ldes:members, including potential nested blank nodes.
+     * See {@link VersionMaterialiser#reduceToLDESMemberOnlyModel(Model)}.
+     */
+    public void reduceToLDESMembers() {
+        Integer memberPredicateID = termIDs.get(Tree.MEMBER);
+        if (memberPredicateID == null) {
+            size = 0;
+            return;
+        }
+
+        // Index the rows by subject: the rows of subject s are rowsBySubject[subjectOffsets[s] .. subjectOffsets[s + 1]].
+        int[] subjectOffsets = new int[terms.size() + 1];
+        for (int row = 0; row < size; row++)
+            subjectOffsets[subjects[row] + 1]++;
+        for (int termID = 0; termID < terms.size(); termID++)
+            subjectOffsets[termID + 1] += subjectOffsets[termID];
+        int[] rowsBySubject = new int[size];
+        int[] nextRow = Arrays.copyOf(subjectOffsets, terms.size());
+        for (int row = 0; row < size; row++)
+            rowsBySubject[nextRow[subjects[row]]++] = row;
+
+        boolean[] visitedSubjects = new boolean[terms.size()];
+        boolean[] includedRows = new boolean[size];
+        int[] subjectStack = new int[terms.size()];
+        int stackSize = 0;
+        for (int row = 0; row < size; row++) {
+            if (predicates[row] == memberPredicateID && terms.get(objects[row]).isResource() && !visitedSubjects[objects[row]]) {
+                visitedSubjects[objects[row]] = true;
+                subjectStack[stackSize++] = objects[row];
+            }
+        }
+        while (stackSize > 0) {
+            int subject = subjectStack[--stackSize];
+            for (int i = subjectOffsets[subject]; i < subjectOffsets[subject + 1]; i++) {
+                int row = rowsBySubject[i];
+                includedRows[row] = true;
+                int object = objects[row];
+                if (terms.get(object).isBNode() && !visitedSubjects[object]) {
+                    visitedSubjects[object] = true;
+                    subjectStack[stackSize++] = object;
+                }
+            }
+        }
+
+        int keptRows = 0;
+        for (int row = 0; row < size; row++) {
+            if (!includedRows[row])
+                continue;
+            subjects[keptRows] = subjects[row];
+            predicates[keptRows] = predicates[row];
+            objects[keptRows] = objects[row];
+            keptRows++;
+        }
+        size = keptRows;
+    }
+
+    /**
+     * Serialises the graph as N-Quads.
+     *
+     * @param out The stream to write to.
+     */
+    public void write(OutputStream out) {
+        RDFWriter writer = Rio.createWriter(RDFFormat.NQUADS, out);
+        writer.startRDF();
+        for (int row = 0; row < size; row++) {
+            writer.handleStatement(vf.createStatement(
+                    (Resource) terms.get(subjects[row]),
+                    (IRI) terms.get(predicates[row]),
+                    terms.get(objects[row])
+            ));
+        }
+        writer.endRDF();
+    }
+}
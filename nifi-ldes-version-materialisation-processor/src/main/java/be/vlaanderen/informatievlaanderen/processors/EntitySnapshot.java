@@ -0,0 +1,81 @@
+package be.vlaanderen.informatievlaanderen.processors;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.impl.TreeModel;
+import org.eclipse.rdf4j.model.util.Models;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the latest version of every entity (isVersionOf object) over a number of versioned models.
+ * Versions are compared on their timestamp. When no timestamp predicate is set, or when either version has no
+ * timestamp, the version added last is taken as the latest one.
+ */
+public class EntitySnapshot {
+    private final IRI versionPredicate;
+    private final IRI timestampPredicate;
+    private final boolean membersOnly;
+    private final boolean skolemise;
+
+    private final Map<Resource, Model> entityModels = new LinkedHashMap<>();
+    private final Map<Resource, Long> entityTimestamps = new HashMap<>();
+
+    /**
+     * @param versionPredicate The isVersionOf predicate.
+     * @param timestampPredicate The predicate holding the version timestamp, or null.
+     * @param membersOnly Whether only versions that are an ldes:member are taken, leaving out referenced versions.
+     * @param skolemise Whether the blank nodes of every entity are skolemised.
+     */
+    public EntitySnapshot(IRI versionPredicate, IRI timestampPredicate, boolean membersOnly, boolean skolemise) {
+        this.versionPredicate = versionPredicate;
+        this.timestampPredicate = timestampPredicate;
+        this.membersOnly = membersOnly;
+        this.skolemise = skolemise;
+    }
+
+    /**
+     * Adds the versions in a model, in the order of their isVersionOf statements. Versions of the same entity are
+     * never merged, a later version replaces the state of the entity as a whole.
+     *
+     * @param inputModel The versioned model.
+     */
+    public void add(Model inputModel) {
+        Set<Resource> members = membersOnly ? VersionMaterialiser.getLDESMembers(inputModel) : null;
+        VersionMaterialiser.versionMaterialiseToVersionModels(inputModel, versionPredicate).forEach((versionID, versionModel) -> {
+            if (members != null && !members.contains(versionID))
+                return;
+            Resource entityID = Models.objectIRI(inputModel.getStatements(versionID, versionPredicate, null)).orElseThrow();
+            Long timestamp = timestampPredicate == null ? null : VersionMaterialiser.getVersionTimestamp(inputModel, versionID, timestampPredicate);
+            Long latestTimestamp = entityTimestamps.get(entityID);
+            if (timestamp != null && latestTimestamp != null && latestTimestamp > timestamp)
+                return;
+            entityModels.put(entityID, skolemise ? VersionMaterialiser.skolemise(versionModel, List.of(entityID)) : versionModel);
+            if (timestamp != null)
+                entityTimestamps.put(entityID, timestamp);
+            else
+                entityTimestamps.remove(entityID);
+        });
+    }
+
+    /**
+     * @return The number of entities in the snapshot.
+     */
+    public int size() {
+        return entityModels.size();
+    }
+
+    /**
+     * @return The latest state of every entity.
+     */
+    public Model toModel() {
+        Model snapshotModel = new TreeModel();
+        entityModels.values().forEach(snapshotModel::addAll);
+        return snapshotModel;
+    }
+}
@@ -0,0 +1,253 @@
+package be.vlaanderen.informatievlaanderen.processors;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the newest version timestamp seen per entity ID.
+ * Every timestamp is written through to an index file: an open addressing hash table keyed by the MD5 hash of the
+ * entity ID, holding one fixed size slot per entity. A newer version of an entity overwrites the timestamp in its
+ * slot, so the file only grows with the number of entities, and looking up an entity reads a slot or a few.
+ * The file is doubled in size once it is half full. As every update is written straight away, the index survives a
+ * restart or a crash of the processor without being stored anywhere else.
+ * The most recently seen entities are cached in memory, so hot entities don't have to be read from the file.
+ */
+public class LatestVersionIndex implements Closeable {
+    private static final String INDEX_FILE = "index";
+    private static final String GROWING_INDEX_FILE = "index.tmp";
+
+    /**
+     * The header holds the number of entities, followed by the slots holding the entity hash and the timestamp.
+     */
+    private static final int HEADER_SIZE = Long.BYTES;
+    private static final int SLOT_SIZE = 3 * Long.BYTES;
+
+    /**
+     * The number of slots read at once when the index is grown.
+     */
+    private static final int GROW_BATCH_SLOTS = 4096;
+
+    private static final long DEFAULT_INITIAL_CAPACITY = 1 << 16;
+
+    private final Map<String, Long> cachedTimestamps;
+    private final Path directory;
+    private final long initialCapacity;
+    private final MessageDigest digest;
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+    private FileChannel channel;
+    private long capacity;
+    private long size;
+
+    /**
+     * @param cacheSize The maximum number of entities cached in memory.
+     * @param directory The directory the index file is kept in.
+     */
+    public LatestVersionIndex(int cacheSize, Path directory) throws IOException {
+        this(cacheSize, directory, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity The number of slots of a new index file, a power of two.
+     */
+    LatestVersionIndex(int cacheSize, Path directory, long initialCapacity) throws IOException {
+        this.directory = directory;
+        this.initialCapacity = initialCapacity;
+        this.cachedTimestamps = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // An index that was being grown when the processor stopped is still intact, only its copy is dropped.
+        Files.deleteIfExists(directory.resolve(GROWING_INDEX_FILE));
+        open();
+    }
+
+    /**
+     * Registers a version of an entity.
+     *
+     * @param entityID The entity the version belongs to.
+     * @param timestamp The version timestamp, in milliseconds since the epoch.
+     * @return False if a newer version of the entity was seen before, true otherwise.
+     */
+    public synchronized boolean offer(String entityID, long timestamp) throws IOException {
+        Long newestTimestamp = cachedTimestamps.get(entityID);
+        long[] hash = null;
+        if (newestTimestamp == null) {
+            hash = hash(entityID);
+            findSlot(channel, capacity, hash);
+            if (!isEmpty(slot))
+                newestTimestamp = slot.getLong(2 * Long.BYTES);
+        }
+        if (newestTimestamp != null && newestTimestamp > timestamp)
+            return false;
+        cachedTimestamps.put(entityID, timestamp);
+        if (newestTimestamp == null || newestTimestamp < timestamp)
+            store(hash != null ? hash : hash(entityID), timestamp);
+        return true;
+    }
+
+    /**
+     * @return The number of entities in the index.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Removes all entities, for when the index is started afresh.
+     */
+    public synchronized void clear() throws IOException {
+        cachedTimestamps.clear();
+        channel.close();
+        Files.deleteIfExists(directory.resolve(INDEX_FILE));
+        open();
+    }
+
+    /**
+     * Writes the index file to the storage device and closes it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    private void open() throws IOException {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        boolean exists = Files.exists(indexFile);
+        channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!exists || channel.size() < HEADER_SIZE) {
+            capacity = initialCapacity;
+            size = 0;
+            allocate(channel, capacity);
+            return;
+        }
+        capacity = (channel.size() - HEADER_SIZE) / SLOT_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        size = header.getLong(0);
+    }
+
+    private void store(long[] hash, long timestamp) throws IOException {
+        long index = findSlot(channel, capacity, hash);
+        if (isEmpty(slot)) {
+            if (2 * (size + 1) > capacity) {
+                grow();
+                index = findSlot(channel, capacity, hash);
+            }
+            size++;
+            writeSize(channel, size);
+        }
+        writeSlot(channel, index, hash[0], hash[1], timestamp);
+    }
+
+    /**
+     * Copies all entities to an index file of twice the capacity, which then replaces the current one.
+     */
+    private void grow() throws IOException {
+        Path growingFile = directory.resolve(GROWING_INDEX_FILE);
+        long grownCapacity = 2 * capacity;
+        try (FileChannel grownChannel = FileChannel.open(growingFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            allocate(grownChannel, grownCapacity);
+            writeSize(grownChannel, size);
+            ByteBuffer batch = ByteBuffer.allocate(GROW_BATCH_SLOTS * SLOT_SIZE);
+            for (long first = 0; first < capacity; first += GROW_BATCH_SLOTS) {
+                batch.clear();
+                batch.limit((int) (Math.min(GROW_BATCH_SLOTS, capacity - first) * SLOT_SIZE));
+                readFully(channel, batch, HEADER_SIZE + first * SLOT_SIZE);
+                for (int offset = 0; offset < batch.limit(); offset += SLOT_SIZE) {
+                    long[] hash = {batch.getLong(offset), batch.getLong(offset + Long.BYTES)};
+                    if (hash[0] == 0 && hash[1] == 0)
+                        continue;
+                    long index = findSlot(grownChannel, grownCapacity, hash);
+                    writeSlot(grownChannel, index, hash[0], hash[1], batch.getLong(offset + 2 * Long.BYTES));
+                }
+            }
+            grownChannel.force(false);
+        }
+        channel.close();
+        Files.move(growingFile, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        capacity = grownCapacity;
+    }
+
+    /**
+     * Probes the slots from the one the hash points to, until the slot of the hash or an empty one is found.
+     *
+     * @return The index of the slot, of which the content is left in the slot buffer.
+     */
+    private long findSlot(FileChannel channel, long capacity, long[] hash) throws IOException {
+        long index = hash[0] & (capacity - 1);
+        while (true) {
+            slot.clear();
+            readFully(channel, slot, HEADER_SIZE + index * SLOT_SIZE);
+            if (isEmpty(slot) || (slot.getLong(0) == hash[0] && slot.getLong(Long.BYTES) == hash[1]))
+                return index;
+            index = (index + 1) & (capacity - 1);
+        }
+    }
+
+    private void writeSlot(FileChannel channel, long index, long high, long low, long timestamp) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE).putLong(high).putLong(low).putLong(timestamp).flip();
+        writeFully(channel, buffer, HEADER_SIZE + index * SLOT_SIZE);
+    }
+
+    private static void writeSize(FileChannel channel, long size) throws IOException {
+        writeFully(channel, ByteBuffer.allocate(HEADER_SIZE).putLong(size).flip(), 0);
+    }
+
+    /**
+     * Sizes a new index file for the given number of slots, which read as empty until they are written.
+     */
+    private static void allocate(FileChannel channel, long capacity) throws IOException {
+        channel.truncate(0);
+        writeSize(channel, 0);
+        writeFully(channel, ByteBuffer.allocate(1), HEADER_SIZE + capacity * SLOT_SIZE - 1);
+    }
+
+    private static boolean isEmpty(ByteBuffer slot) {
+        return slot.getLong(0) == 0 && slot.getLong(Long.BYTES) == 0;
+    }
+
+    /**
+     * @return The MD5 hash of the entity ID as two longs, of which the all zero value marks an empty slot.
+     */
+    private long[] hash(String entityID) {
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest(entityID.getBytes(StandardCharsets.UTF_8)));
+        long high = hash.getLong();
+        long low = hash.getLong();
+        return new long[]{high, high == 0 && low == 0 ? 1 : low};
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of the latest version index.");
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+}
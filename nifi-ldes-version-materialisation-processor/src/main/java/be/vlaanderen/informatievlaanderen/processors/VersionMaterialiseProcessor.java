@@ -17,9 +17,17 @@
 package be.vlaanderen.informatievlaanderen.processors;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.AbstractProcessor;
@@ -27,27 +35,53 @@ import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
-import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.eclipse.rdf4j.model.*;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.Rio;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static be.vlaanderen.informatievlaanderen.processors.VersionMaterialiser.getLDESMembers;
+import static be.vlaanderen.informatievlaanderen.processors.VersionMaterialiser.getVersionIDEntityIDMap;
 import static be.vlaanderen.informatievlaanderen.processors.VersionMaterialiser.reduceToLDESMemberOnlyModel;
+import static be.vlaanderen.informatievlaanderen.processors.VersionMaterialiser.removeStaleVersions;
+import static be.vlaanderen.informatievlaanderen.processors.VersionMaterialiser.splitToLDESMemberModels;
 import static be.vlaanderen.informatievlaanderen.processors.VersionMaterialiser.versionMaterialise;
 
 @Tags({"ldes, vsds"})
 @CapabilityDescription("Version materialisation of an LDES stream")
+@WritesAttributes({
+        @WritesAttribute(attribute = VersionMaterialiseProcessor.MEMBER_ATTRIBUTE, description = "The ldes:member contained in the FlowFile, when splitting per member."),
+        @WritesAttribute(attribute = VersionMaterialiseProcessor.ENTITY_COUNT_ATTRIBUTE, description = "The number of entities in a compacted snapshot.")
+})
+@Stateful(scopes = Scope.LOCAL, description = "When a timestamp predicate is set, the newest version timestamp seen per entity is kept " +
+        "in an index file in the latest version index directory, so stale versions are still recognised after a restart. " +
+        "The state marks the index file as in use, clearing the state clears the index.")
 public class VersionMaterialiseProcessor extends AbstractProcessor {
 
     public static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    public static final String MEMBER_ATTRIBUTE = "ldes.member";
+
+    private static final String LATEST_VERSION_INDEX_STATE = "latest.version.index";
+
+    public static final String ENTITY_COUNT_ATTRIBUTE = "ldes.entity.count";
+
     public static final PropertyDescriptor IS_VERSION_OF = new PropertyDescriptor
             .Builder().name("isVersionOf")
             .displayName("Predicate used for isVersionOf")
@@ -67,6 +101,140 @@ public class VersionMaterialiseProcessor extends AbstractProcessor {
             .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
             .build();
 
+    public static final AllowableValue IN_MEMORY_MODEL = new AllowableValue(
+            "model",
+            "In-memory model",
+            "The FlowFile is parsed into an in-memory model, which is version materialised as a whole."
+    );
+    public static final AllowableValue TWO_PASS_STREAMING = new AllowableValue(
+            "streaming",
+            "Two-pass streaming",
+            "The FlowFile is read twice without building a model: once to collect the isVersionOf statements, " +
+                    "once to write the version materialised statements. Memory use depends on the number of versions, " +
+                    "not on the number of statements. Can't be combined with restricting the output to members."
+    );
+    public static final AllowableValue DICTIONARY_ENCODED = new AllowableValue(
+            "dictionary",
+            "Dictionary encoded",
+            "The FlowFile is parsed into a compact graph of which the terms are interned into int IDs and the triples " +
+                    "are stored in primitive arrays. Version materialisation remaps term IDs, which reduces allocations " +
+                    "and garbage collection on large FlowFiles. Duplicate statements are not removed."
+    );
+    public static final PropertyDescriptor MATERIALISATION_STRATEGY = new PropertyDescriptor
+            .Builder().name("MaterialisationStrategy")
+            .displayName("Materialisation strategy")
+            .description("How the FlowFile contents are processed.")
+            .required(true)
+            .allowableValues(IN_MEMORY_MODEL, TWO_PASS_STREAMING, DICTIONARY_ENCODED)
+            .defaultValue(IN_MEMORY_MODEL.getValue())
+            .build();
+
+    public static final AllowableValue SINGLE_FLOWFILE = new AllowableValue(
+            "single",
+            "Single FlowFile",
+            "The version materialised statements are written to a single FlowFile."
+    );
+    public static final AllowableValue FLOWFILE_PER_MEMBER = new AllowableValue(
+            "member",
+            "FlowFile per member",
+            "Every ldes:member, including its nested blank nodes, is written to a FlowFile of its own. " +
+                    "The member is added as the '" + MEMBER_ATTRIBUTE + "' attribute. Statements about other entities are left out."
+    );
+    public static final AllowableValue COMPACTED_SNAPSHOT = new AllowableValue(
+            "compacted",
+            "Compacted snapshot",
+            "FlowFiles are collected until the compaction count or interval is reached. They are then written to a " +
+                    "single snapshot FlowFile, holding only the latest state of every entity (isVersionOf object)."
+    );
+    public static final PropertyDescriptor OUTPUT_MODE = new PropertyDescriptor
+            .Builder().name("OutputMode")
+            .displayName("Output mode")
+            .description("How the version materialised statements are distributed over outgoing FlowFiles.")
+            .required(true)
+            .allowableValues(SINGLE_FLOWFILE, FLOWFILE_PER_MEMBER, COMPACTED_SNAPSHOT)
+            .defaultValue(SINGLE_FLOWFILE.getValue())
+            .build();
+
+    public static final PropertyDescriptor COMPACTION_COUNT = new PropertyDescriptor
+            .Builder().name("CompactionCount")
+            .displayName("Compaction FlowFile count")
+            .description("In compacted snapshot mode, a snapshot is written as soon as this many FlowFiles are queued.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COMPACTION_INTERVAL = new PropertyDescriptor
+            .Builder().name("CompactionInterval")
+            .displayName("Compaction interval")
+            .description("In compacted snapshot mode, the maximum time between two snapshots, as long as FlowFiles are queued.")
+            .required(true)
+            .defaultValue("1 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("BatchSize")
+            .displayName("Batch size")
+            .description("The maximum number of FlowFiles taken from the queue per trigger.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor WORKER_THREADS = new PropertyDescriptor
+            .Builder().name("WorkerThreads")
+            .displayName("Worker threads")
+            .description("The number of threads the FlowFiles of a batch are version materialised on in parallel. " +
+                    "With a single thread, FlowFiles are version materialised on the thread running the processor. " +
+                    "Not used by the two-pass streaming strategy and in compacted snapshot mode.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SKOLEMISE_BLANK_NODES = new PropertyDescriptor
+            .Builder().name("SkolemiseBlankNodes")
+            .displayName("Skolemise member blank nodes")
+            .description("When enabled, the blank nodes of every member are replaced by IRIs that start with the entity ID " +
+                    "and are derived from the blank node contents. The same entity state always results in the same output, " +
+                    "and downstream stores can replace an entity without traversing its blank nodes.")
+            .required(false)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TIMESTAMP_PREDICATE = new PropertyDescriptor
+            .Builder().name("TimestampPredicate")
+            .displayName("Predicate used for the version timestamp")
+            .description("When set, the newest version timestamp is tracked per entity across FlowFiles. " +
+                    "Versions older than one seen before are dropped before materialisation, " +
+                    "FlowFiles containing only stale versions are dropped altogether. (e.g. http://www.w3.org/ns/prov#generatedAtTime)")
+            .required(false)
+            .addValidator(StandardValidators.URI_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LATEST_VERSION_INDEX_SIZE = new PropertyDescriptor
+            .Builder().name("LatestVersionIndexSize")
+            .displayName("Latest version index size")
+            .description("The maximum number of entities for which the newest version timestamp is cached in memory. " +
+                    "Other entities are looked up in the index file.")
+            .required(true)
+            .defaultValue("100000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LATEST_VERSION_INDEX_DIRECTORY = new PropertyDescriptor
+            .Builder().name("LatestVersionIndexDirectory")
+            .displayName("Latest version index directory")
+            .description("The directory the newest version timestamp of every entity is kept in. " +
+                    "Every processor uses a subdirectory named after its identifier.")
+            .required(true)
+            .defaultValue("./latest-version-index")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("Success")
             .description("Success relationship")
@@ -81,11 +249,45 @@ public class VersionMaterialiseProcessor extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    private LatestVersionIndex latestVersionIndex;
+
+    private volatile long lastCompaction;
+
+    private IRI isVersionOf;
+
+    private boolean restrictToMembers;
+
+    private String materialisationStrategy;
+
+    private String outputMode;
+
+    private boolean skolemise;
+
+    private IRI timestampPredicate;
+
+    private int batchSize;
+
+    private int compactionCount;
+
+    private long compactionInterval;
+
+    private ExecutorService workerPool;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         descriptors = new ArrayList<>();
         descriptors.add(IS_VERSION_OF);
         descriptors.add(RESTRICT_OUTPUT_TO_MEMBER);
+        descriptors.add(MATERIALISATION_STRATEGY);
+        descriptors.add(OUTPUT_MODE);
+        descriptors.add(COMPACTION_COUNT);
+        descriptors.add(COMPACTION_INTERVAL);
+        descriptors.add(SKOLEMISE_BLANK_NODES);
+        descriptors.add(TIMESTAMP_PREDICATE);
+        descriptors.add(LATEST_VERSION_INDEX_SIZE);
+        descriptors.add(LATEST_VERSION_INDEX_DIRECTORY);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(WORKER_THREADS);
         descriptors = Collections.unmodifiableList(descriptors);
 
         relationships = new HashSet<>();
@@ -104,44 +306,312 @@ public class VersionMaterialiseProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        String strategy = context.getProperty(MATERIALISATION_STRATEGY).getValue();
+        boolean inMemoryModel = strategy.equals(IN_MEMORY_MODEL.getValue());
+        if (strategy.equals(TWO_PASS_STREAMING.getValue()) && context.getProperty(RESTRICT_OUTPUT_TO_MEMBER).asBoolean()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(RESTRICT_OUTPUT_TO_MEMBER.getDisplayName())
+                    .valid(false)
+                    .explanation("restricting the output to members can't be combined with the two-pass streaming strategy")
+                    .build());
+        }
+        if (!inMemoryModel && !context.getProperty(OUTPUT_MODE).getValue().equals(SINGLE_FLOWFILE.getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(OUTPUT_MODE.getDisplayName())
+                    .valid(false)
+                    .explanation("this output mode requires the in-memory model strategy")
+                    .build());
+        }
+        if (!inMemoryModel && context.getProperty(SKOLEMISE_BLANK_NODES).asBoolean()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(SKOLEMISE_BLANK_NODES.getDisplayName())
+                    .valid(false)
+                    .explanation("skolemising blank nodes requires the in-memory model strategy")
+                    .build());
+        }
+        if (!inMemoryModel && context.getProperty(TIMESTAMP_PREDICATE).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(TIMESTAMP_PREDICATE.getDisplayName())
+                    .valid(false)
+                    .explanation("dropping stale versions requires the in-memory model strategy")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        isVersionOf = vf.createIRI(context.getProperty(IS_VERSION_OF).getValue());
+        restrictToMembers = context.getProperty(RESTRICT_OUTPUT_TO_MEMBER).asBoolean();
+        materialisationStrategy = context.getProperty(MATERIALISATION_STRATEGY).getValue();
+        outputMode = context.getProperty(OUTPUT_MODE).getValue();
+        skolemise = context.getProperty(SKOLEMISE_BLANK_NODES).asBoolean();
+        batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        compactionCount = context.getProperty(COMPACTION_COUNT).asInteger();
+        compactionInterval = context.getProperty(COMPACTION_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        lastCompaction = System.currentTimeMillis();
+
+        timestampPredicate = null;
+        latestVersionIndex = null;
+        if (context.getProperty(TIMESTAMP_PREDICATE).isSet()) {
+            timestampPredicate = vf.createIRI(context.getProperty(TIMESTAMP_PREDICATE).getValue());
+            Path indexDirectory = Path.of(context.getProperty(LATEST_VERSION_INDEX_DIRECTORY).getValue(), getIdentifier());
+            Files.createDirectories(indexDirectory);
+            latestVersionIndex = new LatestVersionIndex(context.getProperty(LATEST_VERSION_INDEX_SIZE).asInteger(), indexDirectory);
+            // The index is written through on every update, the state only records that it is in use.
+            if (context.getStateManager().getState(Scope.LOCAL).toMap().isEmpty()) {
+                latestVersionIndex.clear();
+                context.getStateManager().setState(Map.of(LATEST_VERSION_INDEX_STATE, indexDirectory.toString()), Scope.LOCAL);
+            }
+        }
+
+        int workerThreads = context.getProperty(WORKER_THREADS).asInteger();
+        workerPool = workerThreads > 1 ? Executors.newFixedThreadPool(workerThreads) : null;
+    }
+
+    @OnStopped
+    public void onStopped(final ProcessContext context) throws IOException {
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+            workerPool = null;
+        }
+        if (latestVersionIndex != null) {
+            latestVersionIndex.close();
+            latestVersionIndex = null;
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        FlowFile flowFile = session.get();
-        IRI isVersionOf = vf.createIRI(context.getProperty(IS_VERSION_OF).getValue());
-        boolean RESTRICT_TO_MEMBERS = context.getProperty(RESTRICT_OUTPUT_TO_MEMBER).getValue().contentEquals("true");
+        if (outputMode.equals(COMPACTED_SNAPSHOT.getValue()))
+            compactVersionMaterialise(context, session);
+        else
+            materialiseBatch(session);
+    }
+
+    /**
+     * Version materialises a batch of FlowFiles with the configured strategy, for the single FlowFile and FlowFile
+     * per member output modes.
+     */
+    private void materialiseBatch(final ProcessSession session) {
+        List<FlowFile> flowFiles = session.get(batchSize);
 
-        if ( flowFile == null ) {
+        if ( flowFiles.isEmpty() ) {
+            return;
+        }
+        if (materialisationStrategy.equals(TWO_PASS_STREAMING.getValue())) {
+            flowFiles.forEach(flowFile -> streamingVersionMaterialise(flowFile, session));
             return;
         }
-        AtomicBoolean is_successful = new AtomicBoolean(false);
-        StringWriter outputStream = new StringWriter();
-        session.read(flowFile, new InputStreamCallback() {
-            @Override
-            public void process(InputStream in) throws IOException {
-                try {
-                    Model inputModel = Rio.parse(in, "", RDFFormat.NQUADS);
 
-                    Model versionMaterialisedModel = versionMaterialise(inputModel, isVersionOf);
-                    if (RESTRICT_TO_MEMBERS)
-                        versionMaterialisedModel = reduceToLDESMemberOnlyModel(versionMaterialisedModel);
+        if (workerPool == null) {
+            for (FlowFile flowFile : flowFiles) {
+                AtomicReference<MaterialisationResult> result = new AtomicReference<>();
+                session.read(flowFile, in -> result.set(materialise(in)));
+                transferResult(flowFile, session, result.get());
+            }
+            return;
+        }
 
-                    Rio.write(versionMaterialisedModel, outputStream, RDFFormat.NQUADS);
-                    is_successful.set(true);
-                }
-                catch (Exception e) {
-                    getLogger().warn("Couldn't apply version materialisation on FlowFile.");
-                    throw new RuntimeException(e);
+        // The session can only be used from this thread: contents are read here and handed over to the workers.
+        List<Future<MaterialisationResult>> results = new ArrayList<>();
+        for (FlowFile flowFile : flowFiles) {
+            AtomicReference<byte[]> content = new AtomicReference<>();
+            session.read(flowFile, in -> content.set(IOUtils.toByteArray(in)));
+            results.add(workerPool.submit(() -> materialise(new ByteArrayInputStream(content.get()))));
+        }
+        for (int i = 0; i < flowFiles.size(); i++) {
+            try {
+                transferResult(flowFiles.get(i), session, results.get(i).get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessException("Interrupted while waiting for version materialisation.", e);
+            }
+            catch (ExecutionException e) {
+                throw new ProcessException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * The outcome of version materialising a FlowFile. Computing it does not require the session,
+     * so it can be done on a worker thread.
+     */
+    private static class MaterialisationResult {
+        private byte[] content;
+        private Map<Resource, byte[]> memberContents;
+        private int staleVersions;
+        private boolean onlyStaleVersions;
+        private Exception failure;
+    }
+
+    /**
+     * Version materialises the contents of a FlowFile, using the in-memory model or dictionary encoded strategy.
+     *
+     * @param in The FlowFile contents.
+     * @return The version materialised contents, or the reason why version materialisation failed.
+     */
+    private MaterialisationResult materialise(InputStream in) {
+        MaterialisationResult result = new MaterialisationResult();
+        try {
+            if (materialisationStrategy.equals(DICTIONARY_ENCODED.getValue())) {
+                DictionaryEncodedGraph graph = DictionaryEncodedGraph.parse(in);
+                graph.versionMaterialise(isVersionOf);
+                if (restrictToMembers)
+                    graph.reduceToLDESMembers();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                graph.write(out);
+                result.content = out.toByteArray();
+                return result;
+            }
+
+            Model inputModel = Rio.parse(in, "", RDFFormat.NQUADS);
+
+            if (timestampPredicate != null) {
+                result.staleVersions = removeStaleVersions(inputModel, isVersionOf, timestampPredicate, latestVersionIndex);
+                result.onlyStaleVersions = result.staleVersions > 0 && !inputModel.contains(null, isVersionOf, null);
+                if (result.onlyStaleVersions)
+                    return result;
+            }
+
+            boolean splitPerMember = outputMode.equals(FLOWFILE_PER_MEMBER.getValue());
+            Model versionMaterialisedModel = versionMaterialise(inputModel, isVersionOf);
+            Set<Resource> members = getLDESMembers(versionMaterialisedModel);
+            if (splitPerMember) {
+                result.memberContents = new LinkedHashMap<>();
+                for (Map.Entry<Resource, Model> memberModel : splitToLDESMemberModels(versionMaterialisedModel).entrySet()) {
+                    Model model = skolemise ? VersionMaterialiser.skolemise(memberModel.getValue(), List.of(memberModel.getKey())) : memberModel.getValue();
+                    result.memberContents.put(memberModel.getKey(), toNQuads(model));
                 }
+                return result;
+            }
+            if (restrictToMembers)
+                versionMaterialisedModel = reduceToLDESMemberOnlyModel(versionMaterialisedModel);
+            // Skolemising goes last, as restricting to members follows blank nodes. Members go first, so blank
+            // nodes they share with referenced entities are named after the member.
+            if (skolemise) {
+                Set<Resource> entityIDs = new LinkedHashSet<>(members);
+                entityIDs.addAll(versionMaterialisedModel.subjects());
+                versionMaterialisedModel = VersionMaterialiser.skolemise(versionMaterialisedModel, entityIDs);
+            }
+            result.content = toNQuads(versionMaterialisedModel);
+        }
+        catch (Exception e) {
+            result.failure = e;
+        }
+        return result;
+    }
+
+    private static byte[] toNQuads(Model model) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Rio.write(model, out, RDFFormat.NQUADS);
+        return out.toByteArray();
+    }
+
+    private void transferResult(FlowFile flowFile, final ProcessSession session, MaterialisationResult result) {
+        if (result.staleVersions > 0)
+            session.adjustCounter("Stale versions dropped", result.staleVersions, false);
+
+        if (result.failure != null) {
+            getLogger().warn("Couldn't apply version materialisation on FlowFile.", result.failure);
+            session.transfer(flowFile, REL_FAILURE);
+        }
+        else if (result.onlyStaleVersions) {
+            session.remove(flowFile);
+        }
+        else if (result.memberContents != null) {
+            transferPerMember(flowFile, session, result.memberContents);
+        }
+        else {
+            flowFile = session.write(flowFile, out -> out.write(result.content));
+            session.transfer(flowFile, REL_SUCCESS);
+        }
+    }
 
+    /**
+     * Writes a compacted snapshot, holding the latest state of every entity in the queued FlowFiles, once the
+     * compaction count or interval is reached. Until then, the FlowFiles are left in the queue.
+     */
+    private void compactVersionMaterialise(final ProcessContext context, final ProcessSession session) {
+        if (session.getQueueSize().getObjectCount() < compactionCount
+                && System.currentTimeMillis() - lastCompaction < compactionInterval) {
+            context.yield();
+            return;
+        }
+        List<FlowFile> flowFiles = session.get(compactionCount);
+        if (flowFiles.isEmpty())
+            return;
+        lastCompaction = System.currentTimeMillis();
+
+        // Without timestamps, later FlowFiles overwrite the state of an entity in earlier ones.
+        EntitySnapshot entitySnapshot = new EntitySnapshot(isVersionOf, timestampPredicate, restrictToMembers, skolemise);
+        List<FlowFile> compactedFlowFiles = new ArrayList<>();
+        for (FlowFile flowFile : flowFiles) {
+            try {
+                session.read(flowFile, in -> {
+                    Model inputModel = Rio.parse(in, "", RDFFormat.NQUADS);
+                    if (timestampPredicate != null) {
+                        int staleVersions = removeStaleVersions(inputModel, isVersionOf, timestampPredicate, latestVersionIndex);
+                        session.adjustCounter("Stale versions dropped", staleVersions, false);
+                    }
+                    entitySnapshot.add(inputModel);
+                });
+                compactedFlowFiles.add(flowFile);
+            }
+            catch (Exception e) {
+                getLogger().warn("Couldn't apply version materialisation on FlowFile.", e);
+                session.transfer(flowFile, REL_FAILURE);
             }
+        }
+        if (compactedFlowFiles.isEmpty())
+            return;
+
+        if (entitySnapshot.size() > 0) {
+            Model snapshotModel = entitySnapshot.toModel();
+            FlowFile snapshot = session.create(compactedFlowFiles);
+            snapshot = session.write(snapshot, out -> Rio.write(snapshotModel, out, RDFFormat.NQUADS));
+            snapshot = session.putAttribute(snapshot, ENTITY_COUNT_ATTRIBUTE, Integer.toString(entitySnapshot.size()));
+            session.transfer(snapshot, REL_SUCCESS);
+        }
+        session.adjustCounter("FlowFiles compacted", compactedFlowFiles.size(), false);
+        session.remove(compactedFlowFiles);
+    }
+
+    /**
+     * Transfers a FlowFile per ldes:member, replacing the original FlowFile.
+     *
+     * @param original The FlowFile the members were taken from.
+     * @param memberContents The N-Quads of every member, keyed by member.
+     */
+    private void transferPerMember(FlowFile original, final ProcessSession session, Map<Resource, byte[]> memberContents) {
+        memberContents.forEach((member, memberContent) -> {
+            FlowFile memberFlowFile = session.create(original);
+            memberFlowFile = session.write(memberFlowFile, out -> out.write(memberContent));
+            memberFlowFile = session.putAttribute(memberFlowFile, MEMBER_ATTRIBUTE, member.stringValue());
+            session.transfer(memberFlowFile, REL_SUCCESS);
         });
-        if (is_successful.get()) {
-            flowFile = session.write(flowFile, out -> out.write(outputStream.toString().getBytes()));
+        session.remove(original);
+    }
+
+    /**
+     * Version materialises a FlowFile in two passes over its content, without building a model.
+     * The first pass collects the isVersionOf statements, the second one writes the 'de-versioned' statements.
+     */
+    private void streamingVersionMaterialise(FlowFile flowFile, final ProcessSession session) {
+        try {
+            Map<Resource, IRI> versionIDEntityIDMap = new HashMap<>();
+            session.read(flowFile, in -> versionIDEntityIDMap.putAll(getVersionIDEntityIDMap(in, isVersionOf)));
+            flowFile = session.write(flowFile, (in, out) -> versionMaterialise(in, out, versionIDEntityIDMap, isVersionOf));
             session.transfer(flowFile, REL_SUCCESS);
         }
-        else
+        catch (Exception e) {
+            getLogger().warn("Couldn't apply version materialisation on FlowFile.", e);
             session.transfer(flowFile, REL_FAILURE);
-
+        }
     }
 
 }
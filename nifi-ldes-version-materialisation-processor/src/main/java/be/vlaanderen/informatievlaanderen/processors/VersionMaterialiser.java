@@ -3,59 +3,235 @@ package be.vlaanderen.informatievlaanderen.processors;
 import org.eclipse.rdf4j.model.*;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.model.impl.TreeModel;
+import org.eclipse.rdf4j.model.util.Models;
+import org.eclipse.rdf4j.rio.*;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.eclipse.rdf4j.rio.helpers.BasicParserSettings;
+import org.eclipse.rdf4j.rio.helpers.NTriplesUtil;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 
 public class VersionMaterialiser {
     public static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    /**
+     * Path appended to the entity ID to build skolem IRIs, after https://www.w3.org/TR/rdf11-concepts/#section-skolemization
+     */
+    public static final String SKOLEM_PATH = "/.well-known/genid/";
     public static Model versionMaterialise(Model inputModel, IRI versionPredicate) {
         Model versionMaterialisedModel = new TreeModel();
 
         Map<Resource, IRI> versionIDEntityIDMap = getVersionIDEntityIDMap(inputModel, versionPredicate);
 
         inputModel.forEach(statement -> {
-            Resource subject = statement.getSubject();
-            IRI predicate = statement.getPredicate();
-            Value object = statement.getObject();
+            Statement versionMaterialisedStatement = versionMaterialise(statement, versionIDEntityIDMap, versionPredicate);
+            if (versionMaterialisedStatement != null)
+                versionMaterialisedModel.add(versionMaterialisedStatement);
+        });
+        return versionMaterialisedModel;
+    }
 
-            // Statement needs 'de-versioning', replacing the subject.
-            if (versionIDEntityIDMap.containsKey(statement.getSubject()))
-                subject = versionIDEntityIDMap.get(statement.getSubject());
+    /**
+     * Version materialises an N-Quads stream without building a model of it.
+     * The version ID to entity ID map has to be collected up front, see {@link #getVersionIDEntityIDMap(InputStream, IRI)}.
+     *
+     * @param in The versioned N-Quads.
+     * @param out The stream the version materialised N-Quads are written to.
+     * @param versionIDEntityIDMap Maps the version IDs in the stream to their entity ID.
+     * @param versionPredicate The isVersionOf predicate.
+     */
+    public static void versionMaterialise(InputStream in, OutputStream out, Map<Resource, IRI> versionIDEntityIDMap, IRI versionPredicate) throws IOException {
+        RDFWriter writer = Rio.createWriter(RDFFormat.NQUADS, out);
+        RDFParser parser = createStreamingParser();
+        parser.setRDFHandler(new AbstractRDFHandler() {
+            @Override
+            public void startRDF() {
+                writer.startRDF();
+            }
 
-            // Object references a versioned entity, replace it with the 'de-versioned' identifier.
-            if (statement.getObject().isResource() && versionIDEntityIDMap.containsKey((Resource) statement.getObject()))
-                object = versionIDEntityIDMap.get((Resource) statement.getObject());
+            @Override
+            public void endRDF() {
+                writer.endRDF();
+            }
 
-            // Don't add isVersionOf statements.
-            if (statement.getPredicate().equals(versionPredicate))
-                return;
+            @Override
+            public void handleStatement(Statement statement) {
+                Statement versionMaterialisedStatement = versionMaterialise(statement, versionIDEntityIDMap, versionPredicate);
+                if (versionMaterialisedStatement != null)
+                    writer.handleStatement(versionMaterialisedStatement);
+            }
+        });
+        parser.parse(in);
+    }
+
+    /**
+     * Collects the version ID to entity ID map of an N-Quads stream, without building a model of it.
+     * Blank node identifiers are preserved, so the map can be applied to a second read of the same stream.
+     *
+     * @param in The versioned N-Quads.
+     * @param isVersionOfPredicate The isVersionOf predicate.
+     * @return The version ID to entity ID map.
+     */
+    public static Map<Resource, IRI> getVersionIDEntityIDMap(InputStream in, IRI isVersionOfPredicate) throws IOException {
+        Map<Resource, IRI> map = new HashMap<>();
+        RDFParser parser = createStreamingParser();
+        parser.setRDFHandler(new AbstractRDFHandler() {
+            @Override
+            public void handleStatement(Statement statement) {
+                if (statement.getPredicate().equals(isVersionOfPredicate))
+                    map.put(statement.getSubject(), getEntityID(statement));
+            }
+        });
+        parser.parse(in);
+        return map;
+    }
+
+    private static RDFParser createStreamingParser() {
+        RDFParser parser = Rio.createParser(RDFFormat.NQUADS);
+        parser.getParserConfig().set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+        return parser;
+    }
+
+    /**
+     * 'De-versions' a single statement.
+     *
+     * @return The version materialised statement, or null if the statement should be left out.
+     */
+    private static Statement versionMaterialise(Statement statement, Map<Resource, IRI> versionIDEntityIDMap, IRI versionPredicate) {
+        Resource subject = statement.getSubject();
+        IRI predicate = statement.getPredicate();
+        Value object = statement.getObject();
+
+        // Don't add isVersionOf statements.
+        if (predicate.equals(versionPredicate))
+            return null;
+
+        // Statement needs 'de-versioning', replacing the subject.
+        if (versionIDEntityIDMap.containsKey(subject))
+            subject = versionIDEntityIDMap.get(subject);
+
+        // Object references a versioned entity, replace it with the 'de-versioned' identifier.
+        if (object.isResource() && versionIDEntityIDMap.containsKey((Resource) object))
+            object = versionIDEntityIDMap.get((Resource) object);
 
         /*
         @todo According to https://github.com/TREEcg/version-materialize-rdf.js "created" statements should be moved
         to a version object, referenced by hasVersion. Since I can't come up with a reason why this would be useful,
         or preferred over having the created statement in the entity itself, I'm not looking into this for now...
         */
-            versionMaterialisedModel.add(vf.createStatement(subject, predicate, object));
-        });
-        return versionMaterialisedModel;
+        return vf.createStatement(subject, predicate, object);
     }
+
     private static Map<Resource, IRI> getVersionIDEntityIDMap(Model model, IRI isVersionOfPredicate) {
         Map<Resource, IRI> map = new HashMap<>();
-        model.getStatements(null, isVersionOfPredicate, null).forEach(memberStatement -> {
-            if (!memberStatement.getObject().isResource()) {
-                throw new RuntimeException(String.format(
-                        "Statement <subject: %s predicate: %s> should have object identifier as object.",
-                        memberStatement.getSubject().toString(),
-                        memberStatement.getPredicate().toString()
-                ));
-            }
-            map.put(memberStatement.getSubject(), (IRI) memberStatement.getObject());
-        });
+        model.getStatements(null, isVersionOfPredicate, null).forEach(memberStatement ->
+            map.put(memberStatement.getSubject(), getEntityID(memberStatement))
+        );
         return map;
     }
 
+    private static IRI getEntityID(Statement isVersionOfStatement) {
+        if (!isVersionOfStatement.getObject().isIRI()) {
+            throw new RuntimeException(String.format(
+                    "Statement <subject: %s predicate: %s> should have object identifier as object.",
+                    isVersionOfStatement.getSubject().toString(),
+                    isVersionOfStatement.getPredicate().toString()
+            ));
+        }
+        return (IRI) isVersionOfStatement.getObject();
+    }
+
+    /**
+     * Version materialises every version in a model on its own, so versions of the same entity aren't merged.
+     * Every version model is limited to the statements about that version, including potential nested blank nodes.
+     *
+     * @param inputModel The versioned model.
+     * @param versionPredicate The isVersionOf predicate.
+     * @return The version materialised models, keyed by version ID, in the order of the isVersionOf statements.
+     */
+    public static Map<Resource, Model> versionMaterialiseToVersionModels(Model inputModel, IRI versionPredicate) {
+        Map<Resource, IRI> versionIDEntityIDMap = getVersionIDEntityIDMap(inputModel, versionPredicate);
+
+        Map<Resource, Model> versionModels = new LinkedHashMap<>();
+        inputModel.getStatements(null, versionPredicate, null).forEach(isVersionOfStatement -> {
+            Model versionModel = new TreeModel();
+            addLDESMemberStatements(inputModel, isVersionOfStatement.getSubject(), versionModel);
+            Model versionMaterialisedModel = new TreeModel();
+            versionModel.forEach(statement -> {
+                Statement versionMaterialisedStatement = versionMaterialise(statement, versionIDEntityIDMap, versionPredicate);
+                if (versionMaterialisedStatement != null)
+                    versionMaterialisedModel.add(versionMaterialisedStatement);
+            });
+            if (!versionMaterialisedModel.isEmpty())
+                versionModels.put(isVersionOfStatement.getSubject(), versionMaterialisedModel);
+        });
+        return versionModels;
+    }
+
+    /**
+     * @param inputModel The versioned model.
+     * @param versionID The version.
+     * @param timestampPredicate The predicate holding the version timestamp.
+     * @return The version timestamp, in milliseconds since the epoch, or null if the version has no valid timestamp.
+     */
+    public static Long getVersionTimestamp(Model inputModel, Resource versionID, IRI timestampPredicate) {
+        Optional<Literal> timestamp = Models.objectLiteral(inputModel.getStatements(versionID, timestampPredicate, null));
+        if (timestamp.isEmpty())
+            return null;
+        try {
+            return timestamp.get().calendarValue().toGregorianCalendar().getTimeInMillis();
+        }
+        catch (IllegalArgumentException e) {
+            // Not a date, the version can't be compared.
+            return null;
+        }
+    }
+
+    /**
+     * Removes versions that are older than a version of the same entity seen before, either in an earlier model
+     * or in this one. Statements about a stale version, its nested blank nodes and references to it are removed.
+     * Versions without a timestamp are kept.
+     *
+     * @param inputModel The versioned model, stale versions are removed from it.
+     * @param versionPredicate The isVersionOf predicate.
+     * @param timestampPredicate The predicate holding the version timestamp.
+     * @param latestVersionIndex The newest timestamp seen per entity ID, updated with the versions in the model.
+     * @return The number of stale versions removed.
+     */
+    public static int removeStaleVersions(Model inputModel, IRI versionPredicate, IRI timestampPredicate, LatestVersionIndex latestVersionIndex) throws IOException {
+        Map<Resource, Long> versionTimestamps = new HashMap<>();
+        getVersionIDEntityIDMap(inputModel, versionPredicate).keySet().forEach(versionID -> {
+            Long timestamp = getVersionTimestamp(inputModel, versionID, timestampPredicate);
+            if (timestamp != null)
+                versionTimestamps.put(versionID, timestamp);
+        });
+
+        // Newest first, so older versions of the same entity in this model are stale as well.
+        List<Map.Entry<Resource, Long>> newestFirst = new ArrayList<>(versionTimestamps.entrySet());
+        newestFirst.sort(Map.Entry.<Resource, Long>comparingByValue().reversed());
+        List<Resource> staleVersionIDs = new ArrayList<>();
+        for (Map.Entry<Resource, Long> versionTimestamp : newestFirst) {
+            Resource versionID = versionTimestamp.getKey();
+            IRI entityID = getEntityID(inputModel.getStatements(versionID, versionPredicate, null).iterator().next());
+            if (!latestVersionIndex.offer(entityID.stringValue(), versionTimestamp.getValue()))
+                staleVersionIDs.add(versionID);
+        }
+
+        staleVersionIDs.forEach(versionID -> {
+            Model staleVersionModel = new TreeModel();
+            addLDESMemberStatements(inputModel, versionID, staleVersionModel);
+            inputModel.removeAll(staleVersionModel);
+            inputModel.remove(null, null, versionID);
+        });
+        return staleVersionIDs.size();
+    }
+
     /**
      * Builds a model limited to statements about the ldes:member, including potential nested blank nodes.
      * Excludes statements about referenced entities, provided as context.
@@ -64,15 +240,145 @@ public class VersionMaterialiser {
      * @return The reduced model.
      */
     public static Model reduceToLDESMemberOnlyModel(Model inputModel) {
-        Stack<Resource> subjectsOfIncludedStatements = new Stack<>();
         Model LDESMemberModel = new TreeModel();
 
         // LDES Member statements
+        // @todo Include statement that the ldes:member belongs to the stream?
+        getLDESMembers(inputModel).forEach(member -> addLDESMemberStatements(inputModel, member, LDESMemberModel));
+        return LDESMemberModel;
+    }
+
+    /**
+     * Builds a model per ldes:member, each limited to the statements about that member, including potential
+     * nested blank nodes. Excludes statements about referenced entities, provided as context.
+     *
+     * @param inputModel The model to split.
+     * @return The member models, keyed by member.
+     */
+    public static Map<Resource, Model> splitToLDESMemberModels(Model inputModel) {
+        Map<Resource, Model> LDESMemberModels = new LinkedHashMap<>();
+        getLDESMembers(inputModel).forEach(member -> {
+            Model LDESMemberModel = new TreeModel();
+            addLDESMemberStatements(inputModel, member, LDESMemberModel);
+            if (!LDESMemberModel.isEmpty())
+                LDESMemberModels.put(member, LDESMemberModel);
+        });
+        return LDESMemberModels;
+    }
+
+    /**
+     * Replaces the blank nodes reachable from an entity, through blank nodes only, by skolem IRIs. A skolem IRI is
+     * the entity ID, followed by {@link #SKOLEM_PATH} and a hash of the referencing subject, the predicate and the
+     * blank node contents. The same entity state hence always results in the same IRIs, and all statements about an
+     * entity have a subject starting with its ID.
+     * Blank nodes reachable from multiple entities are assigned to the first one.
+     *
+     * @param inputModel The version materialised model.
+     * @param entityIDs The entities whose blank nodes are skolemised. Blank node entities are skipped.
+     * @return The skolemised model.
+     */
+    public static Model skolemise(Model inputModel, Collection<Resource> entityIDs) {
+        Map<BNode, String> contentHashes = new HashMap<>();
+        Map<BNode, IRI> skolemIRIs = new HashMap<>();
+        entityIDs.forEach(entityID -> {
+            if (!entityID.isIRI())
+                return;
+            Stack<Resource> subjects = new Stack<>();
+            subjects.push(entityID);
+            while (!subjects.isEmpty()) {
+                Resource subject = subjects.pop();
+                String subjectString = subject.isBNode() ? skolemIRIs.get((BNode) subject).stringValue() : subject.stringValue();
+                inputModel.getStatements(subject, null, null).forEach(statement -> {
+                    if (statement.getObject().isBNode() && !skolemIRIs.containsKey((BNode) statement.getObject())) {
+                        BNode blankNode = (BNode) statement.getObject();
+                        String contentHash = getContentHash(inputModel, blankNode, contentHashes, new HashSet<>());
+                        String skolemHash = hash(subjectString + " " + statement.getPredicate().stringValue() + " " + contentHash);
+                        skolemIRIs.put(blankNode, vf.createIRI(entityID.stringValue() + SKOLEM_PATH + skolemHash));
+                        subjects.push(blankNode);
+                    }
+                });
+            }
+        });
+
+        Model skolemisedModel = new TreeModel();
+        inputModel.forEach(statement -> {
+            Resource subject = statement.getSubject();
+            Value object = statement.getObject();
+            if (subject.isBNode() && skolemIRIs.containsKey((BNode) subject))
+                subject = skolemIRIs.get((BNode) subject);
+            if (object.isBNode() && skolemIRIs.containsKey((BNode) object))
+                object = skolemIRIs.get((BNode) object);
+            skolemisedModel.add(vf.createStatement(subject, statement.getPredicate(), object));
+        });
+        return skolemisedModel;
+    }
+
+    /**
+     * Hashes the statements about a blank node, in which nested blank nodes are replaced by their own hash.
+     */
+    private static String getContentHash(Model inputModel, BNode blankNode, Map<BNode, String> contentHashes, Set<BNode> inProgress) {
+        if (contentHashes.containsKey(blankNode))
+            return contentHashes.get(blankNode);
+        // Blank nodes referencing each other in a cycle can't be hashed on their contents.
+        if (!inProgress.add(blankNode))
+            return "cycle";
+
+        List<String> lines = new ArrayList<>();
+        inputModel.getStatements(blankNode, null, null).forEach(statement -> {
+            Value object = statement.getObject();
+            String objectString = object.isBNode()
+                    ? "_:" + getContentHash(inputModel, (BNode) object, contentHashes, inProgress)
+                    : NTriplesUtil.toNTriplesString(object);
+            lines.add(NTriplesUtil.toNTriplesString(statement.getPredicate()) + " " + objectString);
+        });
+        Collections.sort(lines);
+
+        String contentHash = hash(String.join("\n", lines));
+        contentHashes.put(blankNode, contentHash);
+        inProgress.remove(blankNode);
+        return contentHash;
+    }
+
+    /**
+     * @return The first 128 bits of the SHA-256 hash of a string, hex encoded.
+     */
+    private static String hash(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++)
+                hex.append(String.format("%02x", hash[i]));
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param inputModel A model containing tree:member statements.
+     * @return The ldes:members in the model.
+     */
+    public static Set<Resource> getLDESMembers(Model inputModel) {
+        Set<Resource> members = new LinkedHashSet<>();
         inputModel.getStatements(null, Tree.MEMBER, null).forEach(memberStatement -> {
-            // @todo Include statement that the ldes:member belongs to the stream?
-            //outModel.add(memberStatement);
-            subjectsOfIncludedStatements.push((Resource) memberStatement.getObject());
+            if (memberStatement.getObject().isResource())
+                members.add((Resource) memberStatement.getObject());
         });
+        return members;
+    }
+
+    /**
+     * Adds all statements about an ldes:member, including potential nested blank nodes, to a model.
+     *
+     * @param inputModel The model to take the statements from.
+     * @param member The ldes:member.
+     * @param LDESMemberModel The model to add the statements to.
+     */
+    private static void addLDESMemberStatements(Model inputModel, Resource member, Model LDESMemberModel) {
+        Stack<Resource> subjectsOfIncludedStatements = new Stack<>();
+        Set<Resource> visitedSubjects = new HashSet<>();
+        subjectsOfIncludedStatements.push(member);
 
         /*
          * LDES members can contain blank node references. All statements of those blank nodes
@@ -81,6 +387,8 @@ public class VersionMaterialiser {
          */
         while (!subjectsOfIncludedStatements.isEmpty()) {
             Resource subject = subjectsOfIncludedStatements.pop();
+            if (!visitedSubjects.add(subject))
+                continue;
             inputModel.getStatements(subject, null, null).forEach((Statement includedStatement) -> {
                 LDESMemberModel.add(includedStatement);
                 Value object = includedStatement.getObject();
@@ -89,6 +397,5 @@ public class VersionMaterialiser {
                 }
             });
         }
-        return LDESMemberModel;
     }
 }
@@ -0,0 +1,75 @@
+package be.vlaanderen.informatievlaanderen.processors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatestVersionIndexTest {
+
+    @TempDir
+    Path indexDirectory;
+
+    @Test
+    public void testRejectsOlderVersions() throws IOException {
+        try (LatestVersionIndex index = new LatestVersionIndex(10, indexDirectory)) {
+            assertTrue(index.offer("entity", 2));
+            assertFalse(index.offer("entity", 1));
+            assertTrue(index.offer("entity", 2));
+            assertTrue(index.offer("entity", 3));
+            assertFalse(index.offer("entity", 2));
+        }
+    }
+
+    @Test
+    public void testUpdatesDontGrowTheIndexFile() throws IOException {
+        try (LatestVersionIndex index = new LatestVersionIndex(1, indexDirectory, 16)) {
+            long fileSize = Files.size(indexDirectory.resolve("index"));
+            for (int timestamp = 0; timestamp < 1000; timestamp++) {
+                assertTrue(index.offer("entity/1", timestamp));
+                assertTrue(index.offer("entity/2", timestamp));
+            }
+            assertEquals(2, index.size());
+            assertEquals(fileSize, Files.size(indexDirectory.resolve("index")));
+        }
+    }
+
+    @Test
+    public void testLooksUpUncachedEntitiesAfterGrowing() throws IOException {
+        try (LatestVersionIndex index = new LatestVersionIndex(1, indexDirectory, 16)) {
+            for (int entity = 0; entity < 1000; entity++)
+                assertTrue(index.offer("entity/" + entity, 10));
+            assertEquals(1000, index.size());
+            for (int entity = 0; entity < 1000; entity++)
+                assertFalse(index.offer("entity/" + entity, 9));
+        }
+    }
+
+    @Test
+    public void testSurvivesReopeningWithoutClose() throws IOException {
+        LatestVersionIndex crashed = new LatestVersionIndex(10, indexDirectory, 16);
+        for (int entity = 0; entity < 100; entity++)
+            crashed.offer("entity/" + entity, 10);
+
+        try (LatestVersionIndex index = new LatestVersionIndex(10, indexDirectory, 16)) {
+            assertEquals(100, index.size());
+            assertFalse(index.offer("entity/42", 9));
+            assertTrue(index.offer("entity/100", 9));
+        }
+        crashed.close();
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        try (LatestVersionIndex index = new LatestVersionIndex(10, indexDirectory)) {
+            index.offer("entity", 2);
+            index.clear();
+            assertEquals(0, index.size());
+            assertTrue(index.offer("entity", 1));
+        }
+    }
+}
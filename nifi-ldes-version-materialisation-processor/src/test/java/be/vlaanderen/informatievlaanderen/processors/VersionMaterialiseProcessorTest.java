@@ -18,6 +18,7 @@ package be.vlaanderen.informatievlaanderen.processors;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.jena.assembler.Mode;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -29,6 +30,7 @@ import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.Rio;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.*;
 import java.nio.file.Files;
@@ -41,6 +43,9 @@ public class VersionMaterialiseProcessorTest {
 
     private TestRunner testRunner;
 
+    @TempDir
+    Path indexDirectory;
+
     @BeforeEach
     public void init() {
         testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
@@ -96,6 +101,364 @@ public class VersionMaterialiseProcessorTest {
         assert Models.isomorphic(FlowFileOutModel, ComparisonModel);
     }
 
+    /**
+     * Assert that a batch of FlowFiles can be version materialised in parallel, in a single trigger.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testVersionMaterialiseBatchOnWorkerThreads() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.RESTRICT_OUTPUT_TO_MEMBER, "true");
+        testRunner.setProperty(VersionMaterialiseProcessor.BATCH_SIZE, "4");
+        testRunner.setProperty(VersionMaterialiseProcessor.WORKER_THREADS, "2");
+
+        String versionedMember = turtleFileToQuadString("src/test/resources/ldes-member-versioned.ttl");
+        for (int i = 0; i < 4; i++)
+            testRunner.enqueue(versionedMember);
+
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 4);
+        InputStream ComparisonFile = new FileInputStream("src/test/resources/ldes-member-unversioned.ttl");
+        Model ComparisonModel = Rio.parse(ComparisonFile, "", RDFFormat.TURTLE);
+        for (MockFlowFile FlowFileOut : testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS)) {
+            Model FlowFileOutModel = Rio.parse(FlowFileOut.getContentStream(), "", RDFFormat.NQUADS);
+            assert Models.isomorphic(FlowFileOutModel, ComparisonModel);
+        }
+    }
+
+    /**
+     * Assert that the two-pass streaming strategy gives the same result as the in-memory model strategy.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testVersionMaterialiseStreaming() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.IS_VERSION_OF, "http://purl.org/dc/terms/isVersionOf");
+        testRunner.setProperty(VersionMaterialiseProcessor.MATERIALISATION_STRATEGY, "streaming");
+
+        String versionedMember = turtleFileToQuadString("src/test/resources/ldes-member-versioned.ttl");
+        testRunner.enqueue(versionedMember);
+
+        testRunner.run();
+
+        MockFlowFile FlowFileOut = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0);
+        Model FlowFileOutModel = Rio.parse(FlowFileOut.getContentStream(), "", RDFFormat.NQUADS);
+        InputStream ComparisonFile = new FileInputStream("src/test/resources/ldes-member-unversioned-context-included.ttl");
+        Model ComparisonModel = Rio.parse(ComparisonFile, "", RDFFormat.TURTLE);
+
+        assert Models.isomorphic(FlowFileOutModel, ComparisonModel);
+    }
+
+    /**
+     * Assert that the dictionary encoded strategy gives the same result as the in-memory model strategy.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testVersionMaterialiseDictionaryEncodedMemberOnly() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.IS_VERSION_OF, "http://purl.org/dc/terms/isVersionOf");
+        testRunner.setProperty(VersionMaterialiseProcessor.RESTRICT_OUTPUT_TO_MEMBER, "true");
+        testRunner.setProperty(VersionMaterialiseProcessor.MATERIALISATION_STRATEGY, "dictionary");
+
+        String versionedMember = turtleFileToQuadString("src/test/resources/ldes-member-versioned.ttl");
+        testRunner.enqueue(versionedMember);
+
+        testRunner.run();
+
+        MockFlowFile FlowFileOut = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0);
+        Model FlowFileOutModel = Rio.parse(FlowFileOut.getContentStream(), "", RDFFormat.NQUADS);
+        InputStream ComparisonFile = new FileInputStream("src/test/resources/ldes-member-unversioned.ttl");
+        Model ComparisonModel = Rio.parse(ComparisonFile, "", RDFFormat.TURTLE);
+
+        assert Models.isomorphic(FlowFileOutModel, ComparisonModel);
+    }
+
+    public final String TwoVersionedMembers = """
+            <http://example.org/stream> <https://w3id.org/tree#member> <http://example.org/entity/1/v2> .
+            <http://example.org/stream> <https://w3id.org/tree#member> <http://example.org/entity/2/v5> .
+            <http://example.org/entity/1/v2> <http://purl.org/dc/terms/isVersionOf> <http://example.org/entity/1> .
+            <http://example.org/entity/1/v2> <http://www.w3.org/2000/01/rdf-schema#label> "Entity 1" .
+            <http://example.org/entity/1/v2> <http://example.org/period> _:period1 .
+            _:period1 <http://example.org/start> "2022-01-01" .
+            <http://example.org/entity/2/v5> <http://purl.org/dc/terms/isVersionOf> <http://example.org/entity/2> .
+            <http://example.org/entity/2/v5> <http://www.w3.org/2000/01/rdf-schema#label> "Entity 2" .
+            <http://example.org/entity/2/v5> <http://example.org/related> <http://example.org/context> .
+            <http://example.org/context> <http://www.w3.org/2000/01/rdf-schema#label> "Context" .
+            """;
+
+    /**
+     * Assert that every member is written to a FlowFile of its own, without statements about other entities.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testVersionMaterialiseFlowFilePerMember() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.OUTPUT_MODE, "member");
+
+        testRunner.enqueue(TwoVersionedMembers);
+
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 2);
+        MockFlowFile firstMember = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0);
+        firstMember.assertAttributeEquals(VersionMaterialiseProcessor.MEMBER_ATTRIBUTE, "http://example.org/entity/1");
+        Model firstMemberModel = Rio.parse(new StringReader(firstMember.getContent()), "", RDFFormat.NQUADS);
+        assert firstMemberModel.size() == 3;
+
+        MockFlowFile secondMember = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(1);
+        secondMember.assertAttributeEquals(VersionMaterialiseProcessor.MEMBER_ATTRIBUTE, "http://example.org/entity/2");
+        assert !secondMember.getContent().contains("Context");
+    }
+
+    /**
+     * Assert that skolemised output has no member blank nodes left, and is identical for identical input.
+     */
+    @Test
+    public void testVersionMaterialiseSkolemised() {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.RESTRICT_OUTPUT_TO_MEMBER, "true");
+        testRunner.setProperty(VersionMaterialiseProcessor.SKOLEMISE_BLANK_NODES, "true");
+
+        String versionedMember = turtleFileToQuadString("src/test/resources/ldes-member-versioned.ttl");
+        testRunner.enqueue(versionedMember);
+        testRunner.enqueue(versionedMember);
+
+        testRunner.run(2);
+
+        MockFlowFile first = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0);
+        MockFlowFile second = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(1);
+        assert !first.getContent().contains("_:");
+        assert first.getContent().contains("<https://private-api.gipod.vlaanderen.be/api/v1/mobility-hindrances/10590560" + VersionMaterialiser.SKOLEM_PATH);
+        assert first.getContent().equals(second.getContent());
+    }
+
+    /**
+     * Assert that the blank nodes of referenced entities are skolemised as well, and only blank nodes that can't be
+     * reached from an IRI are left.
+     */
+    @Test
+    public void testVersionMaterialiseSkolemisesReferencedEntities() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.SKOLEMISE_BLANK_NODES, "true");
+
+        testRunner.enqueue("""
+            <http://example.org/stream> <https://w3id.org/tree#member> <http://example.org/entity/1/v1> .
+            <http://example.org/entity/1/v1> <http://purl.org/dc/terms/isVersionOf> <http://example.org/entity/1> .
+            <http://example.org/entity/1/v1> <http://example.org/address> _:address .
+            _:address <http://www.w3.org/2000/01/rdf-schema#label> "member address" .
+            <http://example.org/context> <http://example.org/address> _:contextAddress .
+            _:contextAddress <http://www.w3.org/2000/01/rdf-schema#label> "context address" .
+            _:unreachable <http://www.w3.org/2000/01/rdf-schema#label> "unreachable" .
+            """);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 1);
+        Model output = Rio.parse(new StringReader(testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0).getContent()), "", RDFFormat.NQUADS);
+        assert Models.subject(output.filter(null, null, vf.createLiteral("member address"))).orElseThrow()
+                .stringValue().startsWith("http://example.org/entity/1" + VersionMaterialiser.SKOLEM_PATH);
+        assert Models.subject(output.filter(null, null, vf.createLiteral("context address"))).orElseThrow()
+                .stringValue().startsWith("http://example.org/context" + VersionMaterialiser.SKOLEM_PATH);
+        assert Models.subject(output.filter(null, null, vf.createLiteral("unreachable"))).orElseThrow().isBNode();
+    }
+
+    /**
+     * Assert that versions older than a version seen in an earlier FlowFile are dropped.
+     */
+    @Test
+    public void testVersionMaterialiseDropsStaleVersions() {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.TIMESTAMP_PREDICATE, "http://www.w3.org/ns/prov#generatedAtTime");
+        testRunner.setProperty(VersionMaterialiseProcessor.LATEST_VERSION_INDEX_DIRECTORY, indexDirectory.toString());
+
+        testRunner.enqueue(versionOfEntity("v2", "2022-02-01T00:00:00Z"));
+        testRunner.enqueue(versionOfEntity("v1", "2022-01-01T00:00:00Z"));
+        testRunner.enqueue(versionOfEntity("v3", "2022-03-01T00:00:00Z"));
+
+        testRunner.run(3);
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 2);
+        assert testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0).getContent().contains("v2");
+        assert testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(1).getContent().contains("v3");
+        assert testRunner.getCounterValue("Stale versions dropped") == 1;
+    }
+
+    /**
+     * Assert that stale versions are still recognised for entities that are no longer cached in memory.
+     */
+    @Test
+    public void testVersionMaterialiseDropsStaleVersionsOfUncachedEntities() {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.TIMESTAMP_PREDICATE, "http://www.w3.org/ns/prov#generatedAtTime");
+        testRunner.setProperty(VersionMaterialiseProcessor.LATEST_VERSION_INDEX_SIZE, "1");
+        testRunner.setProperty(VersionMaterialiseProcessor.LATEST_VERSION_INDEX_DIRECTORY, indexDirectory.toString());
+
+        testRunner.enqueue(versionOfEntity("1", "v2", "2022-02-01T00:00:00Z"));
+        testRunner.enqueue(versionOfEntity("2", "v1", "2022-01-01T00:00:00Z"));
+        testRunner.enqueue(versionOfEntity("3", "v1", "2022-01-01T00:00:00Z"));
+        testRunner.run(3, false);
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 3);
+
+        // Entity 1 no longer fits in memory, and is found in the index file across a restart.
+        testRunner.run(1, true, false);
+        testRunner.enqueue(versionOfEntity("1", "v1", "2022-01-01T00:00:00Z"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 3);
+        assert testRunner.getCounterValue("Stale versions dropped") == 1;
+    }
+
+    /**
+     * Assert that the state isn't rewritten for every FlowFile, and that clearing it clears the latest version index.
+     */
+    @Test
+    public void testVersionMaterialiseClearsLatestVersionIndexWithState() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.TIMESTAMP_PREDICATE, "http://www.w3.org/ns/prov#generatedAtTime");
+        testRunner.setProperty(VersionMaterialiseProcessor.LATEST_VERSION_INDEX_DIRECTORY, indexDirectory.toString());
+
+        testRunner.enqueue(versionOfEntity("v2", "2022-02-01T00:00:00Z"));
+        testRunner.enqueue(versionOfEntity("v3", "2022-03-01T00:00:00Z"));
+        testRunner.run(2);
+        // The state only marks the index as in use, the timestamps are kept in the index file.
+        assert testRunner.getStateManager().getState(Scope.LOCAL).toMap().size() == 1;
+
+        testRunner.getStateManager().clear(Scope.LOCAL);
+        testRunner.enqueue(versionOfEntity("v1", "2022-01-01T00:00:00Z"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 3);
+        assert testRunner.getCounterValue("Stale versions dropped") == null;
+    }
+
+    /**
+     * Assert that a compacted snapshot only holds the latest state of every entity.
+     */
+    @Test
+    public void testVersionMaterialiseCompactedSnapshot() {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.OUTPUT_MODE, "compacted");
+        testRunner.setProperty(VersionMaterialiseProcessor.COMPACTION_COUNT, "3");
+
+        testRunner.enqueue(versionOfEntity("v1", "2022-01-01T00:00:00Z"));
+        testRunner.enqueue(versionOfEntity("v2", "2022-02-01T00:00:00Z"));
+        testRunner.run();
+        // Neither the count nor the interval is reached yet.
+        testRunner.assertTransferCount(VersionMaterialiseProcessor.REL_SUCCESS, 0);
+
+        testRunner.enqueue(versionOfEntity("v3", "2022-03-01T00:00:00Z"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 1);
+        MockFlowFile snapshot = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0);
+        snapshot.assertAttributeEquals(VersionMaterialiseProcessor.ENTITY_COUNT_ATTRIBUTE, "1");
+        assert snapshot.getContent().contains("v3");
+        assert !snapshot.getContent().contains("v1");
+        assert !snapshot.getContent().contains("v2");
+        testRunner.assertQueueEmpty();
+    }
+
+    /**
+     * Assert that the version with the newest timestamp ends up in a compacted snapshot, regardless of the queue order.
+     */
+    @Test
+    public void testVersionMaterialiseCompactedSnapshotByTimestamp() {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.OUTPUT_MODE, "compacted");
+        testRunner.setProperty(VersionMaterialiseProcessor.COMPACTION_COUNT, "2");
+        testRunner.setProperty(VersionMaterialiseProcessor.TIMESTAMP_PREDICATE, "http://www.w3.org/ns/prov#generatedAtTime");
+        testRunner.setProperty(VersionMaterialiseProcessor.LATEST_VERSION_INDEX_DIRECTORY, indexDirectory.toString());
+
+        testRunner.enqueue(versionOfEntity("v3", "2022-03-01T00:00:00Z"));
+        testRunner.enqueue(versionOfEntity("v2", "2022-02-01T00:00:00Z"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 1);
+        MockFlowFile snapshot = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0);
+        assert snapshot.getContent().contains("v3");
+        assert !snapshot.getContent().contains("v2");
+    }
+
+    /**
+     * Assert that two versions of an entity in the same FlowFile aren't merged in a compacted snapshot.
+     */
+    @Test
+    public void testVersionMaterialiseCompactedSnapshotOfVersionsInFlowFile() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.OUTPUT_MODE, "compacted");
+        testRunner.setProperty(VersionMaterialiseProcessor.COMPACTION_COUNT, "1");
+
+        testRunner.enqueue(versionOfEntity("v1", "2022-01-01T00:00:00Z") + versionOfEntity("v2", "2022-02-01T00:00:00Z"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 1);
+        MockFlowFile snapshot = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0);
+        snapshot.assertAttributeEquals(VersionMaterialiseProcessor.ENTITY_COUNT_ATTRIBUTE, "1");
+        Model snapshotModel = Rio.parse(new StringReader(snapshot.getContent()), "", RDFFormat.NQUADS);
+        assert snapshotModel.size() == 2;
+        assert snapshot.getContent().contains("v2");
+        assert !snapshot.getContent().contains("v1");
+    }
+
+    /**
+     * Assert that restricting the output to members leaves versions that are only referenced out of a compacted snapshot.
+     */
+    @Test
+    public void testVersionMaterialiseCompactedSnapshotOfMembersOnly() {
+        final TestRunner testRunner = TestRunners.newTestRunner(VersionMaterialiseProcessor.class);
+
+        testRunner.setProperty(VersionMaterialiseProcessor.RESTRICT_OUTPUT_TO_MEMBER, "true");
+        testRunner.setProperty(VersionMaterialiseProcessor.OUTPUT_MODE, "compacted");
+        testRunner.setProperty(VersionMaterialiseProcessor.COMPACTION_COUNT, "1");
+
+        String member = "<http://example.org/stream> <https://w3id.org/tree#member> <http://example.org/entity/1/v1> .\n";
+        testRunner.enqueue(member + versionOfEntity("1", "v1", "2022-01-01T00:00:00Z") + versionOfEntity("2", "v1", "2022-01-01T00:00:00Z"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 1);
+        MockFlowFile snapshot = testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0);
+        snapshot.assertAttributeEquals(VersionMaterialiseProcessor.ENTITY_COUNT_ATTRIBUTE, "1");
+        assert snapshot.getContent().contains("<http://example.org/entity/1>");
+        assert !snapshot.getContent().contains("<http://example.org/entity/2>");
+
+        // Without the restriction, the referenced entity is part of the snapshot as well.
+        testRunner.clearTransferState();
+        testRunner.setProperty(VersionMaterialiseProcessor.RESTRICT_OUTPUT_TO_MEMBER, "false");
+        testRunner.enqueue(member + versionOfEntity("1", "v1", "2022-01-01T00:00:00Z") + versionOfEntity("2", "v1", "2022-01-01T00:00:00Z"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(VersionMaterialiseProcessor.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(VersionMaterialiseProcessor.REL_SUCCESS).get(0).assertAttributeEquals(VersionMaterialiseProcessor.ENTITY_COUNT_ATTRIBUTE, "2");
+    }
+
+    private String versionOfEntity(String version, String timestamp) {
+        return versionOfEntity("1", version, timestamp);
+    }
+
+    private String versionOfEntity(String entity, String version, String timestamp) {
+        return String.format("""
+            <http://example.org/entity/%1$s/%2$s> <http://purl.org/dc/terms/isVersionOf> <http://example.org/entity/%1$s> .
+            <http://example.org/entity/%1$s/%2$s> <http://www.w3.org/2000/01/rdf-schema#label> "%2$s" .
+            <http://example.org/entity/%1$s/%2$s> <http://www.w3.org/ns/prov#generatedAtTime> "%3$s"^^<http://www.w3.org/2001/XMLSchema#dateTime> .
+            """, entity, version, timestamp);
+    }
+
     private String turtleFileToQuadString(String filename) {
         StringWriter VersionedNQuads = new StringWriter();
         try {
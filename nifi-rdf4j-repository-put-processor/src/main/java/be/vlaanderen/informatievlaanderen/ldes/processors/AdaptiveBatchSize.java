@@ -0,0 +1,50 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+/**
+ * Adapts the number of FlowFiles written per transaction, so that a transaction takes about a target time.
+ * The size grows or shrinks by at most a factor 2 per batch, within the configured bounds.
+ */
+class AdaptiveBatchSize {
+	private final int minimum;
+	private final int maximum;
+	private final long targetNanos;
+	private int current;
+
+	/**
+	 * @param minimum The minimum number of FlowFiles per transaction.
+	 * @param maximum The maximum number of FlowFiles per transaction.
+	 * @param targetMillis The targeted transaction time.
+	 * @param initial The number of FlowFiles in the first transaction.
+	 */
+	AdaptiveBatchSize(int minimum, int maximum, long targetMillis, int initial) {
+		this.minimum = minimum;
+		this.maximum = maximum;
+		this.targetNanos = targetMillis * 1_000_000;
+		this.current = clamp(initial);
+	}
+
+	/**
+	 * @return The number of FlowFiles to write in the next transaction.
+	 */
+	synchronized int get() {
+		return current;
+	}
+
+	/**
+	 * Adapts the batch size to the time a transaction took.
+	 * @param flowFiles The number of FlowFiles written in the transaction.
+	 * @param transactionNanos The time the transaction took.
+	 */
+	synchronized void update(int flowFiles, long transactionNanos) {
+		if (flowFiles == 0)
+			return;
+		long nanosPerFlowFile = Math.max(1, transactionNanos / flowFiles);
+		long ideal = targetNanos / nanosPerFlowFile;
+		long next = Math.max(current / 2, Math.min(2L * current, ideal));
+		current = clamp((int) next);
+	}
+
+	private int clamp(int batchSize) {
+		return Math.max(minimum, Math.min(maximum, batchSize));
+	}
+}
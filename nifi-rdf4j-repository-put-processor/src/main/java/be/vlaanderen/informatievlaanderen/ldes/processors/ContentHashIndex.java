@@ -0,0 +1,146 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.rio.ntriples.NTriplesUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Keeps the content hash of the last committed version per entity, to recognise republished entities that did not change.
+ * The index is bounded: once full, the least recently used entities are forgotten, after which they are written again.
+ * It is stored in a local file, one entity per line, from least to most recently used, while the processor is stopped.
+ */
+class ContentHashIndex {
+	private final Map<String, String> contentHashes;
+
+	/**
+	 * @param maxSize The maximum number of entities in the index.
+	 */
+	ContentHashIndex(int maxSize) {
+		this.contentHashes = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param entityId The entity.
+	 * @return The content hash of the last committed version of the entity, or null if unknown.
+	 */
+	synchronized String get(Resource entityId) {
+		return contentHashes.get(entityId.stringValue());
+	}
+
+	/**
+	 * Registers committed versions of entities.
+	 * @param committedHashes The content hashes per entity.
+	 */
+	synchronized void putAll(Map<Resource, String> committedHashes) {
+		committedHashes.forEach((entityId, contentHash) -> contentHashes.put(entityId.stringValue(), contentHash));
+	}
+
+	/**
+	 * Loads the index from a file, if it exists, and removes the file. The file is only written again when the
+	 * processor stops, so that an index that missed commits because of a crash is never used.
+	 * @param file The index file.
+	 */
+	synchronized void load(Path file) throws IOException {
+		if (!Files.exists(file))
+			return;
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf(' ');
+				if (separator > 0)
+					contentHashes.put(line.substring(separator + 1), line.substring(0, separator));
+			}
+		}
+		Files.delete(file);
+	}
+
+	/**
+	 * Saves the index to a file, replacing it at once.
+	 * @param file The index file.
+	 */
+	synchronized void save(Path file) throws IOException {
+		Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, String> entry : contentHashes.entrySet()) {
+				writer.write(entry.getValue() + " " + entry.getKey());
+				writer.newLine();
+			}
+		}
+		Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Hashes the statements about an entity, in which nested blank nodes are replaced by the hash of their own statements.
+	 * The hash doesn't depend on blank node labels or statement order.
+	 * @param model A graph.
+	 * @param entityId The entity.
+	 * @return The content hash.
+	 */
+	static String getContentHash(Model model, Resource entityId) {
+		return getContentHash(model, entityId, new HashMap<>(), new HashSet<>());
+	}
+
+	private static String getContentHash(Model model, Resource subject, Map<BNode, String> blankNodeHashes, Set<BNode> inProgress) {
+		if (subject.isBNode()) {
+			if (blankNodeHashes.containsKey((BNode) subject))
+				return blankNodeHashes.get((BNode) subject);
+			// Blank nodes referencing each other in a cycle can't be hashed on their contents.
+			if (!inProgress.add((BNode) subject))
+				return "cycle";
+		}
+
+		List<String> lines = new ArrayList<>();
+		model.getStatements(subject, null, null).forEach(statement -> {
+			Value object = statement.getObject();
+			String objectString = object.isBNode()
+					? "_:" + getContentHash(model, (BNode) object, blankNodeHashes, inProgress)
+					: NTriplesUtil.toNTriplesString(object);
+			String line = NTriplesUtil.toNTriplesString(statement.getPredicate()) + " " + objectString;
+			if (statement.getContext() != null)
+				line += " " + NTriplesUtil.toNTriplesString(statement.getContext());
+			lines.add(line);
+		});
+		Collections.sort(lines);
+
+		String contentHash = hash(String.join("\n", lines));
+		if (subject.isBNode()) {
+			blankNodeHashes.put((BNode) subject, contentHash);
+			inProgress.remove(subject);
+		}
+		return contentHash;
+	}
+
+	/**
+	 * @return The first 128 bits of the SHA-256 hash of a string, hex encoded.
+	 */
+	private static String hash(String value) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				hex.append(String.format("%02x", hash[i]));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+
+@Tags({ "ldes, rdf4j-repository, vsds" })
+@CapabilityDescription("Provides connections to an RDF4J repository")
+public interface RDF4JRepositoryConnectionService extends ControllerService {
+	/**
+	 * Returns a connection to the repository. Closing the connection hands it back to the service.
+	 * @return A connection to the repository.
+	 * @throws ProcessException If no connection became available in time.
+	 */
+	RepositoryConnection getConnection() throws ProcessException;
+}
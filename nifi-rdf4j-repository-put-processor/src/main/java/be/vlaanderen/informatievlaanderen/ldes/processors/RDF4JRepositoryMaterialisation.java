@@ -5,37 +5,86 @@ import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.eclipse.rdf4j.common.transaction.IsolationLevels;
 import org.eclipse.rdf4j.model.*;
 import org.eclipse.rdf4j.model.base.AbstractIRI;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.QueryResults;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.config.RepositoryConfig;
+import org.eclipse.rdf4j.repository.manager.LocalRepositoryManager;
 import org.eclipse.rdf4j.repository.manager.RemoteRepositoryManager;
 import org.eclipse.rdf4j.repository.manager.RepositoryManager;
+import org.eclipse.rdf4j.repository.sail.config.SailRepositoryConfig;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.ntriples.NTriplesUtil;
+import org.eclipse.rdf4j.sail.config.SailImplConfig;
+import org.eclipse.rdf4j.sail.memory.config.MemoryStoreConfig;
+import org.eclipse.rdf4j.sail.nativerdf.config.NativeStoreConfig;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.nifi.processor.util.StandardValidators;
 
 @Tags({ "ldes, rdf4j-repository, vsds" })
 @CapabilityDescription("Materialises LDES events into an RDF4J repository")
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
-public class RDF4JRepositoryMaterialisation extends AbstractProcessor {
+public class RDF4JRepositoryMaterialisation extends AbstractSessionFactoryProcessor {
 	private RepositoryManager repositoryManager;
 
+	private String repositoryId;
+
+	private volatile Repository repository;
+
+	private RDF4JRepositoryConnectionService connectionService;
+
+	private AdaptiveBatchSize batchSize;
+
+	private ExecutorService writerPool;
+
+	private ExecutorService pipelineExecutor;
+
+	private ContentHashIndex contentHashIndex;
+
+	private Path contentHashIndexFile;
+
+	private SubjectBloomFilter writtenSubjects;
+
+	private Path writtenSubjectsFile;
+
+	private volatile boolean writtenSubjectsRebuildNeeded;
+
 	static final Relationship REL_SUCCESS = new Relationship.Builder()
 			.name("success")
 			.description("A FlowFile is routed to this relationship after the database is successfully updated")
@@ -48,7 +97,7 @@ public class RDF4JRepositoryMaterialisation extends AbstractProcessor {
 
 	static final PropertyDescriptor SPARQL_HOST = new PropertyDescriptor.Builder()
 			.name("REF4J remote repository location")
-			.description("The hostname and port of the server.")
+			.description("The hostname and port of the server, for a remote repository.")
 			.defaultValue("http://graphdb:7200")
 			.required(true)
 			.addValidator(StandardValidators.URL_VALIDATOR)
@@ -56,11 +105,47 @@ public class RDF4JRepositoryMaterialisation extends AbstractProcessor {
 
 	static final PropertyDescriptor REPOSITORY_ID = new PropertyDescriptor.Builder()
 			.name("Repository ID")
-			.description("The repository to connect to.")
-			.required(true)
+			.description("The repository to connect to. Required unless a connection service is used.")
+			.required(false)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
 			.build();
 
+	static final AllowableValue STORAGE_REMOTE = new AllowableValue(
+			"remote",
+			"Remote repository",
+			"The repository is on the RDF4J server at the remote repository location.");
+	static final AllowableValue STORAGE_NATIVE = new AllowableValue(
+			"native",
+			"Embedded native store",
+			"The repository is an RDF4J native store in the data directory, on disk.");
+	static final AllowableValue STORAGE_MEMORY = new AllowableValue(
+			"memory",
+			"Embedded memory store",
+			"The repository is an RDF4J memory store, that is persisted to the data directory.");
+
+	static final PropertyDescriptor STORAGE = new PropertyDescriptor.Builder()
+			.name("Repository storage")
+			.description("Where the repository is kept. An embedded repository is created in the data directory if it doesn't exist yet, "
+					+ "and can only be used by one processor at a time.")
+			.required(true)
+			.allowableValues(STORAGE_REMOTE, STORAGE_NATIVE, STORAGE_MEMORY)
+			.defaultValue(STORAGE_REMOTE.getValue())
+			.build();
+
+	static final PropertyDescriptor DATA_DIRECTORY = new PropertyDescriptor.Builder()
+			.name("Data directory")
+			.description("The local directory an embedded repository is kept in.")
+			.required(false)
+			.addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+			.build();
+
+	static final PropertyDescriptor CONNECTION_SERVICE = new PropertyDescriptor.Builder()
+			.name("Repository connection service")
+			.description("If set, connections are taken from this shared pool, and the repository location and ID are ignored.")
+			.required(false)
+			.identifiesControllerService(RDF4JRepositoryConnectionService.class)
+			.build();
+
 	static final PropertyDescriptor NAMED_GRAPH = new PropertyDescriptor.Builder()
 			.name("Named graph")
 			.description("If set, the named graph the triples will be written to.")
@@ -68,59 +153,979 @@ public class RDF4JRepositoryMaterialisation extends AbstractProcessor {
 			.addValidator(StandardValidators.URI_VALIDATOR)
 			.build();
 
+	static final PropertyDescriptor MIN_BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Minimum batch size")
+			.description("The minimum number of FlowFiles written to the repository in one transaction.")
+			.defaultValue("1")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Maximum batch size")
+			.description("The maximum number of FlowFiles written to the repository in one transaction.")
+			.defaultValue("500")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor TARGET_TRANSACTION_TIME = new PropertyDescriptor.Builder()
+			.name("Target transaction time")
+			.description("The number of FlowFiles per transaction grows or shrinks, within the minimum and maximum batch size, "
+					+ "so that parsing, deleting, adding and committing a batch takes about this long.")
+			.defaultValue("1 sec")
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor BATCHES_PER_TRIGGER = new PropertyDescriptor.Builder()
+			.name("Batches per trigger")
+			.description("The maximum number of batches written per run of the processor. With more than one, "
+					+ "the next batch is parsed while the previous one is being written and committed.")
+			.defaultValue("1")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor ISOLATE_FAILURES = new PropertyDescriptor.Builder()
+			.name("Isolate failing FlowFiles")
+			.description("If true, a FlowFile that can't be parsed is routed to failure, and a batch that can't be written is split in halves "
+					+ "until the FlowFiles that can't be written are isolated and routed to failure, while the others are committed. "
+					+ "When the repository can't be queried after a failure, or none of the FlowFiles of a batch can be written, "
+					+ "the repository is to blame, and the whole batch is rolled back and retried later instead. "
+					+ "If false, any failure rolls back the whole batch.")
+			.defaultValue("false")
+			.allowableValues("true", "false")
+			.required(true)
+			.build();
+
+	static final PropertyDescriptor PARALLEL_WRITERS = new PropertyDescriptor.Builder()
+			.name("Parallel writers")
+			.description("The number of connections a batch is written over concurrently, each in its own transaction. "
+					+ "FlowFiles about the same entity are always written over the same connection, in order. "
+					+ "If a transaction fails, only its FlowFiles are routed to failure.")
+			.defaultValue("1")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor CONTENT_HASH_INDEX_FILE = new PropertyDescriptor.Builder()
+			.name("Content hash index file")
+			.description("If set, a hash of the content of every committed entity is kept, and stored in this local file when the processor stops. "
+					+ "Entities that are republished with the same content are not written again. "
+					+ "Only use this when no one else changes the entities in the repository.")
+			.required(false)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor CONTENT_HASH_INDEX_SIZE = new PropertyDescriptor.Builder()
+			.name("Content hash index size")
+			.description("The maximum number of entities in the content hash index. The least recently written entities are forgotten first.")
+			.defaultValue("100000")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor WRITTEN_SUBJECTS_FILTER_FILE = new PropertyDescriptor.Builder()
+			.name("Written subjects filter file")
+			.description("If set, a Bloom filter of the subjects written to the repository is kept, and stored in this local file when the processor stops. "
+					+ "Entities that were certainly not written before are added without deleting first. "
+					+ "When the file is missing, the filter is rebuilt from the subjects in the repository. "
+					+ "Only use this when no one else adds entities to the repository.")
+			.required(false)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor WRITTEN_SUBJECTS_FILTER_CAPACITY = new PropertyDescriptor.Builder()
+			.name("Written subjects filter capacity")
+			.description("The number of subjects the written subjects filter is sized for, with about 1% false positives. "
+					+ "Changing it rebuilds the filter from the repository.")
+			.defaultValue("1000000")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	static final AllowableValue DELETE_PER_SUBJECT = new AllowableValue(
+			"per subject",
+			"Per subject",
+			"The statements of every entity and nested blank node are looked up and removed one subject at a time.");
+	static final AllowableValue DELETE_BULK_UPDATE = new AllowableValue(
+			"bulk update",
+			"Bulk update",
+			"The entities of all FlowFiles in a batch, including their nested blank nodes, are removed with a single SPARQL UPDATE.");
+
+	static final AllowableValue DELETE_DIFF = new AllowableValue(
+			"diff",
+			"Diff",
+			"The stored entities of a batch are fetched with a single query, and only the statements that changed are removed and added. "
+					+ "Blank nodes are compared on their contents, and replaced per predicate when they differ.");
+
+	static final AllowableValue DELETE_GRAPH_PER_ENTITY = new AllowableValue(
+			"graph per entity",
+			"Graph per entity",
+			"Every entity, including its blank nodes, is stored in a named graph with the IRI of the entity. "
+					+ "The previous version of an entity is removed by clearing its graph. Can't be combined with a named graph.");
+
+	static final PropertyDescriptor DELETE_STRATEGY = new PropertyDescriptor.Builder()
+			.name("Delete strategy")
+			.description("How the previous version of the entities is removed from the repository.")
+			.required(true)
+			.allowableValues(DELETE_PER_SUBJECT, DELETE_BULK_UPDATE, DELETE_DIFF, DELETE_GRAPH_PER_ENTITY)
+			.defaultValue(DELETE_PER_SUBJECT.getValue())
+			.build();
+
+	static final PropertyDescriptor BLANK_NODE_DEPTH = new PropertyDescriptor.Builder()
+			.name("Blank node depth")
+			.description("With the bulk update and diff delete strategies, how deep blank nodes can be nested inside an entity. "
+					+ "Blank nodes nested deeper than this are not removed, a warning is logged for parsed FlowFiles that nest them deeper.")
+			.defaultValue("5")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	static final AllowableValue UPLOAD_PARSE = new AllowableValue(
+			"parse",
+			"Parse",
+			"The FlowFiles are parsed, and the statements are added to the repository.");
+
+	static final AllowableValue UPLOAD_PASS_THROUGH = new AllowableValue(
+			"pass-through",
+			"Pass-through",
+			"The N-Quads of the FlowFiles are sent to the repository as they are, which parses them itself. "
+					+ "Only the subjects are read from the FlowFiles, to remove the previous versions. "
+					+ "Can only be combined with the per subject and bulk update delete strategies, and not with a content hash index.");
+
+	static final PropertyDescriptor UPLOAD_MODE = new PropertyDescriptor.Builder()
+			.name("Upload mode")
+			.description("How the content of the FlowFiles is sent to the repository.")
+			.required(true)
+			.allowableValues(UPLOAD_PARSE, UPLOAD_PASS_THROUGH)
+			.defaultValue(UPLOAD_PARSE.getValue())
+			.build();
+
+
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<>();
+		if (!context.getProperty(CONNECTION_SERVICE).isSet() && !context.getProperty(REPOSITORY_ID).isSet()) {
+			results.add(new ValidationResult.Builder()
+					.subject(REPOSITORY_ID.getName())
+					.valid(false)
+					.explanation("a repository ID is required when no connection service is used")
+					.build());
+		}
+		final boolean embedded = !context.getProperty(STORAGE).getValue().equals(STORAGE_REMOTE.getValue());
+		if (embedded && !context.getProperty(DATA_DIRECTORY).isSet()) {
+			results.add(new ValidationResult.Builder()
+					.subject(DATA_DIRECTORY.getName())
+					.valid(false)
+					.explanation("a data directory is required for an embedded repository")
+					.build());
+		}
+		if (embedded && context.getProperty(CONNECTION_SERVICE).isSet()) {
+			results.add(new ValidationResult.Builder()
+					.subject(CONNECTION_SERVICE.getName())
+					.valid(false)
+					.explanation("a connection service can't be used with an embedded repository")
+					.build());
+		}
+		if (context.getProperty(MIN_BATCH_SIZE).asInteger() > context.getProperty(MAX_BATCH_SIZE).asInteger()) {
+			results.add(new ValidationResult.Builder()
+					.subject(MIN_BATCH_SIZE.getName())
+					.valid(false)
+					.explanation("the minimum batch size can't be larger than the maximum batch size")
+					.build());
+		}
+		if (context.getProperty(NAMED_GRAPH).isSet()
+				&& context.getProperty(DELETE_STRATEGY).getValue().equals(DELETE_GRAPH_PER_ENTITY.getValue())) {
+			results.add(new ValidationResult.Builder()
+					.subject(NAMED_GRAPH.getName())
+					.valid(false)
+					.explanation("a named graph can't be used when every entity is stored in its own graph")
+					.build());
+		}
+		if (context.getProperty(UPLOAD_MODE).getValue().equals(UPLOAD_PASS_THROUGH.getValue())) {
+			final String deleteStrategy = context.getProperty(DELETE_STRATEGY).getValue();
+			if (deleteStrategy.equals(DELETE_DIFF.getValue()) || deleteStrategy.equals(DELETE_GRAPH_PER_ENTITY.getValue())) {
+				results.add(new ValidationResult.Builder()
+						.subject(UPLOAD_MODE.getName())
+						.valid(false)
+						.explanation("FlowFiles can only be passed through with the per subject or bulk update delete strategy")
+						.build());
+			}
+			if (context.getProperty(CONTENT_HASH_INDEX_FILE).isSet()) {
+				results.add(new ValidationResult.Builder()
+						.subject(UPLOAD_MODE.getName())
+						.valid(false)
+						.explanation("FlowFiles can't be passed through when a content hash index is used")
+						.build());
+			}
+		}
+		return results;
+	}
 
 	@OnScheduled
 	public void onScheduled(final ProcessContext context) {
-		this.repositoryManager = new RemoteRepositoryManager(context.getProperty(SPARQL_HOST).getValue());
+		if (context.getProperty(CONNECTION_SERVICE).isSet()) {
+			this.connectionService = context.getProperty(CONNECTION_SERVICE).asControllerService(RDF4JRepositoryConnectionService.class);
+		} else {
+			this.connectionService = null;
+			this.repositoryManager = createRepositoryManager(context);
+			this.repositoryId = context.getProperty(REPOSITORY_ID).getValue();
+			this.repository = null;
+		}
+		this.batchSize = new AdaptiveBatchSize(
+				context.getProperty(MIN_BATCH_SIZE).asInteger(),
+				context.getProperty(MAX_BATCH_SIZE).asInteger(),
+				context.getProperty(TARGET_TRANSACTION_TIME).asTimePeriod(TimeUnit.MILLISECONDS),
+				50);
+		int parallelWriters = context.getProperty(PARALLEL_WRITERS).asInteger();
+		this.writerPool = parallelWriters > 1 ? Executors.newFixedThreadPool(parallelWriters) : null;
+		this.pipelineExecutor = context.getProperty(BATCHES_PER_TRIGGER).asInteger() > 1 ? Executors.newCachedThreadPool() : null;
+
+		if (context.getProperty(CONTENT_HASH_INDEX_FILE).isSet()) {
+			this.contentHashIndexFile = Paths.get(context.getProperty(CONTENT_HASH_INDEX_FILE).getValue());
+			this.contentHashIndex = new ContentHashIndex(context.getProperty(CONTENT_HASH_INDEX_SIZE).asInteger());
+			try {
+				contentHashIndex.load(contentHashIndexFile);
+			} catch (IOException e) {
+				getLogger().warn("Could not load the content hash index from {}, starting with an empty index", contentHashIndexFile, e);
+			}
+		} else {
+			this.contentHashIndex = null;
+		}
+
+		if (context.getProperty(WRITTEN_SUBJECTS_FILTER_FILE).isSet()) {
+			int capacity = context.getProperty(WRITTEN_SUBJECTS_FILTER_CAPACITY).asInteger();
+			this.writtenSubjectsFile = Paths.get(context.getProperty(WRITTEN_SUBJECTS_FILTER_FILE).getValue());
+			this.writtenSubjects = null;
+			try {
+				this.writtenSubjects = SubjectBloomFilter.load(writtenSubjectsFile);
+			} catch (IOException e) {
+				getLogger().warn("Could not load the written subjects filter from {}, rebuilding it from the repository", writtenSubjectsFile, e);
+			}
+			this.writtenSubjectsRebuildNeeded = writtenSubjects == null || !writtenSubjects.hasCapacity(capacity);
+			if (writtenSubjectsRebuildNeeded)
+				this.writtenSubjects = new SubjectBloomFilter(capacity);
+		} else {
+			this.writtenSubjects = null;
+		}
+	}
+
+	@OnStopped
+	public void onStopped() {
+		if (writerPool != null) {
+			writerPool.shutdown();
+			writerPool = null;
+		}
+		if (pipelineExecutor != null) {
+			pipelineExecutor.shutdown();
+			pipelineExecutor = null;
+		}
+		if (contentHashIndex != null) {
+			try {
+				contentHashIndex.save(contentHashIndexFile);
+			} catch (IOException e) {
+				getLogger().error("Could not save the content hash index to {}", contentHashIndexFile, e);
+			}
+		}
+		// A filter that was never filled from the repository is not saved, so that it is rebuilt next time.
+		if (writtenSubjects != null && !writtenSubjectsRebuildNeeded) {
+			try {
+				writtenSubjects.save(writtenSubjectsFile);
+			} catch (IOException e) {
+				getLogger().error("Could not save the written subjects filter to {}", writtenSubjectsFile, e);
+			}
+		}
+		if (repositoryManager != null) {
+			repositoryManager.shutDown();
+			repositoryManager = null;
+		}
+	}
+
+	/**
+	 * Creates the manager of the remote or embedded repository. An embedded repository is created if it doesn't exist yet.
+	 */
+	private static RepositoryManager createRepositoryManager(ProcessContext context) {
+		final String storage = context.getProperty(STORAGE).getValue();
+		if (storage.equals(STORAGE_REMOTE.getValue()))
+			return new RemoteRepositoryManager(context.getProperty(SPARQL_HOST).getValue());
+
+		final String repositoryId = context.getProperty(REPOSITORY_ID).getValue();
+		final LocalRepositoryManager localRepositoryManager = new LocalRepositoryManager(new File(context.getProperty(DATA_DIRECTORY).getValue()));
+		localRepositoryManager.init();
+		if (!localRepositoryManager.hasRepositoryConfig(repositoryId)) {
+			SailImplConfig storeConfig = storage.equals(STORAGE_NATIVE.getValue()) ? new NativeStoreConfig() : new MemoryStoreConfig(true);
+			localRepositoryManager.addRepositoryConfig(new RepositoryConfig(repositoryId, new SailRepositoryConfig(storeConfig)));
+		}
+		return localRepositoryManager;
+	}
+
+	private RepositoryConnection getConnection() {
+		if (connectionService != null)
+			return connectionService.getConnection();
+		// The repository is looked up once, on first use.
+		if (repository == null)
+			repository = repositoryManager.getRepository(repositoryId);
+		return repository.getConnection();
 	}
 
 	@Override
-	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-		// @todo Find out the ideal number of FlowFiles to process in one transaction.
-		final List<FlowFile> flowFiles = session.get(50);
+	public void onTrigger(ProcessContext context, ProcessSessionFactory sessionFactory) throws ProcessException {
+		final int batchesPerTrigger = context.getProperty(BATCHES_PER_TRIGGER).asInteger();
+
+		/*
+		 * Every batch has its own session, which is committed as soon as the batch is written, so that a failure in a
+		 * later batch doesn't roll back the batches that are already committed to the repository.
+		 * While a batch is written on the pipeline thread, the next batch is read and parsed on this thread.
+		 * A batch is only written once the previous one is committed, so the order of the FlowFiles is kept.
+		 */
+		Batch writing = null;
+		try {
+			for (int batches = 0; batches < batchesPerTrigger; batches++) {
+				final ProcessSession session = sessionFactory.createSession();
+				final List<FlowFile> flowFiles = session.get(batchSize.get());
+				if (flowFiles.isEmpty()) {
+					session.commit();
+					break;
+				}
+				final Batch batch = new Batch(session, flowFiles);
+				try {
+					final long parseStart = System.nanoTime();
+					final List<FlowFileContent> contents = readBatch(context, session, flowFiles, batch.statistics);
+					final long parseNanos = System.nanoTime() - parseStart;
+
+					if (writing != null) {
+						final Batch previous = writing;
+						writing = null;
+						completeBatch(context, previous);
+					}
+					if (pipelineExecutor == null) {
+						batch.committed = CompletableFuture.completedFuture(writeBatch(context, flowFiles, contents, batch.statistics, parseNanos));
+					} else {
+						batch.committed = pipelineExecutor.submit(() -> writeBatch(context, flowFiles, contents, batch.statistics, parseNanos));
+					}
+				} catch (RuntimeException e) {
+					session.rollback(true);
+					throw e;
+				}
+				writing = batch;
+			}
+			if (writing != null) {
+				final Batch last = writing;
+				writing = null;
+				completeBatch(context, last);
+			}
+		} finally {
+			// After a failure, still wait for the batch that is being written, so that it is never written again while it is still running.
+			if (writing != null) {
+				try {
+					completeBatch(context, writing);
+				} catch (RuntimeException e) {
+					getLogger().error("Failed to write a batch of {} FlowFiles to the repository", writing.flowFiles.size(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A batch of FlowFiles, in its own session, that is being written to the repository.
+	 */
+	private static class Batch {
+		final ProcessSession session;
+		final List<FlowFile> flowFiles;
+		final WriteStatistics statistics = new WriteStatistics();
+		Future<boolean[]> committed;
+
+		Batch(ProcessSession session, List<FlowFile> flowFiles) {
+			this.session = session;
+			this.flowFiles = flowFiles;
+		}
+	}
+
+	/**
+	 * Waits for a batch to be written, and routes and commits its FlowFiles. When the batch can't be written,
+	 * its session is rolled back and the failure is thrown.
+	 */
+	private void completeBatch(ProcessContext context, Batch batch) {
+		final boolean[] committed;
+		try {
+			committed = awaitBatch(batch.committed);
+		} catch (RuntimeException e) {
+			batch.session.rollback(true);
+			throw e;
+		}
+		final ProcessSession session = batch.session;
+		for (int i = 0; i < batch.flowFiles.size(); i++) {
+			if (committed[i])
+				session.transfer(batch.flowFiles.get(i), REL_SUCCESS);
+			else
+				session.transfer(batch.flowFiles.get(i), REL_FAILURE);
+		}
+
+		final WriteStatistics statistics = batch.statistics;
+		session.adjustCounter("Batches written", 1, false);
+		session.adjustCounter("Parse time (ms)", TimeUnit.NANOSECONDS.toMillis(statistics.parseNanos.get()), false);
+		session.adjustCounter("Delete time (ms)", TimeUnit.NANOSECONDS.toMillis(statistics.deleteNanos.get()), false);
+		session.adjustCounter("Add time (ms)", TimeUnit.NANOSECONDS.toMillis(statistics.addNanos.get()), false);
+		session.adjustCounter("Commit time (ms)", TimeUnit.NANOSECONDS.toMillis(statistics.commitNanos.get()), false);
+		if (contentHashIndex != null)
+			session.adjustCounter("Unchanged entities", statistics.unchangedEntities.get(), false);
+		if (writtenSubjects != null)
+			session.adjustCounter("New entities", statistics.newEntities.get(), false);
+		if (context.getProperty(ISOLATE_FAILURES).asBoolean()) {
+			session.adjustCounter("Isolated FlowFiles", statistics.isolatedFlowFiles.get(), false);
+			session.adjustCounter("Batch bisections", statistics.bisections.get(), false);
+		}
+		if (context.getProperty(DELETE_STRATEGY).getValue().equals(DELETE_DIFF.getValue())) {
+			session.adjustCounter("Statements added", statistics.addedStatements.get(), false);
+			session.adjustCounter("Statements removed", statistics.removedStatements.get(), false);
+		}
+		session.commit();
+	}
+
+	/**
+	 * Reads the FlowFiles of a batch, parsing them unless they are passed through. When failing FlowFiles are isolated,
+	 * a FlowFile that can't be read is left out as null, otherwise the failure is thrown.
+	 * @return The contents of the FlowFiles, in order.
+	 */
+	private List<FlowFileContent> readBatch(ProcessContext context, ProcessSession session, List<FlowFile> flowFiles, WriteStatistics statistics) {
+		final boolean isolateFailures = context.getProperty(ISOLATE_FAILURES).asBoolean();
+		final boolean passThrough = context.getProperty(UPLOAD_MODE).getValue().equals(UPLOAD_PASS_THROUGH.getValue());
+		final String deleteStrategy = context.getProperty(DELETE_STRATEGY).getValue();
+		final boolean limitedBlankNodeDepth = deleteStrategy.equals(DELETE_BULK_UPDATE.getValue()) || deleteStrategy.equals(DELETE_DIFF.getValue());
+		final int blankNodeDepth = context.getProperty(BLANK_NODE_DEPTH).asInteger();
+		final List<FlowFileContent> contents = new ArrayList<>();
+		for (FlowFile flowFile : flowFiles) {
+			try {
+				session.read(flowFile, new InputStreamCallback() {
+					@Override
+					public void process(InputStream in) throws IOException {
+						long start = System.nanoTime();
+						if (passThrough) {
+							byte[] nquads = IOUtils.toByteArray(in);
+							contents.add(new FlowFileContent(null, nquads, scanSubjects(nquads)));
+						} else {
+							Model model = Rio.parse(in, "", RDFFormat.NQUADS);
+							contents.add(new FlowFileContent(model, null, getSubjectsFromModel(model)));
+							if (limitedBlankNodeDepth) {
+								int depth = getBlankNodeDepth(model);
+								if (depth > blankNodeDepth)
+									getLogger().warn("{} nests blank nodes {} deep, deeper than the blank node depth of {}, "
+											+ "the deeper blank nodes of its previous version are not removed", flowFile, depth, blankNodeDepth);
+							}
+						}
+						statistics.parseNanos.addAndGet(System.nanoTime() - start);
+					}
+				});
+			} catch (RuntimeException e) {
+				if (!isolateFailures)
+					throw e;
+				getLogger().error("Failed to parse {}, routing to failure", flowFile, e);
+				statistics.isolatedFlowFiles.incrementAndGet();
+				contents.add(null);
+			}
+		}
+		return contents;
+	}
+
+	/**
+	 * The content of a FlowFile, parsed into a model, or kept as N-Quads when it is passed through.
+	 */
+	private static class FlowFileContent {
+		final Model model;
+		final byte[] nquads;
+		final Set<Resource> entityIds;
+
+		FlowFileContent(Model model, byte[] nquads, Set<Resource> entityIds) {
+			this.model = model;
+			this.nquads = nquads;
+			this.entityIds = entityIds;
+		}
+	}
+
+	/**
+	 * Collects the subject IRIs of N-Quads, by only looking at the start of every line.
+	 * @param nquads The N-Quads.
+	 * @return The subject IRIs.
+	 */
+	static Set<Resource> scanSubjects(byte[] nquads) {
+		final Set<Resource> entityIds = new HashSet<>();
+		final ValueFactory valueFactory = SimpleValueFactory.getInstance();
+		int lineStart = 0;
+		while (lineStart < nquads.length) {
+			int position = lineStart;
+			while (position < nquads.length && (nquads[position] == ' ' || nquads[position] == '\t'))
+				position++;
+			if (position < nquads.length && nquads[position] == '<') {
+				int end = position + 1;
+				while (end < nquads.length && nquads[end] != '>' && nquads[end] != '\n')
+					end++;
+				if (end < nquads.length && nquads[end] == '>') {
+					String subject = new String(nquads, position, end - position + 1, StandardCharsets.UTF_8);
+					entityIds.add(NTriplesUtil.parseURI(subject, valueFactory));
+				}
+			}
+			while (lineStart < nquads.length && nquads[lineStart] != '\n')
+				lineStart++;
+			lineStart++;
+		}
+		return entityIds;
+	}
+
+	/**
+	 * Writes a batch to the repository, over parallel partitions if configured.
+	 * @param flowFiles The FlowFiles of the batch.
+	 * @param contents The contents of the FlowFiles, null for the FlowFiles that couldn't be read.
+	 * @param parseNanos The time it took to parse the batch, to adapt the batch size to.
+	 * @return Per FlowFile, whether it was committed.
+	 */
+	private boolean[] writeBatch(ProcessContext context, List<FlowFile> flowFiles, List<FlowFileContent> contents, WriteStatistics statistics, long parseNanos) {
+		final long writeStart = System.nanoTime();
+		if (writtenSubjects != null)
+			rebuildWrittenSubjects();
+
+		final boolean isolateFailures = context.getProperty(ISOLATE_FAILURES).asBoolean();
+		final List<Integer> parsed = new ArrayList<>();
+		for (int i = 0; i < contents.size(); i++) {
+			if (contents.get(i) != null)
+				parsed.add(i);
+		}
+		final boolean[] committed = new boolean[contents.size()];
+		if (writerPool == null) {
+			if (isolateFailures) {
+				writeIsolatingFailures(context, flowFiles, contents, parsed, statistics, committed);
+			} else {
+				writeToRepo(context, contents, statistics);
+				Arrays.fill(committed, true);
+			}
+		} else {
+			// Write the partitions over concurrent connections, FlowFiles about the same entity end up in the same partition.
+			List<Set<Resource>> parsedEntityIds = new ArrayList<>();
+			parsed.forEach(index -> parsedEntityIds.add(contents.get(index).entityIds));
+			List<List<Integer>> partitions = new ArrayList<>();
+			for (List<Integer> partition : partitionByEntity(parsedEntityIds, context.getProperty(PARALLEL_WRITERS).asInteger())) {
+				List<Integer> batchIndexes = new ArrayList<>();
+				partition.forEach(index -> batchIndexes.add(parsed.get(index)));
+				partitions.add(batchIndexes);
+			}
+			List<Future<?>> results = new ArrayList<>();
+			for (List<Integer> partition : partitions) {
+				if (isolateFailures) {
+					results.add(writerPool.submit(() -> writeIsolatingFailures(context, flowFiles, contents, partition, statistics, committed)));
+				} else {
+					List<FlowFileContent> partitionContents = new ArrayList<>();
+					partition.forEach(index -> partitionContents.add(contents.get(index)));
+					results.add(writerPool.submit(() -> writeToRepo(context, partitionContents, statistics)));
+				}
+			}
+			RepositoryUnavailableException unavailable = null;
+			Throwable failure = null;
+			for (int i = 0; i < partitions.size(); i++) {
+				try {
+					results.get(i).get();
+					if (!isolateFailures)
+						partitions.get(i).forEach(index -> committed[index] = true);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RepositoryUnavailableException)
+						unavailable = (RepositoryUnavailableException) e.getCause();
+					else if (isolateFailures)
+						getLogger().error("Failed to write partition of {} FlowFiles to the repository", partitions.get(i).size(), e.getCause());
+					else if (failure == null)
+						failure = e.getCause();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ProcessException(e);
+				}
+			}
+			if (unavailable != null)
+				throw unavailable;
+			// Like a serial write, a failing partition fails the whole batch, so it is rolled back and retried.
+			// The partitions that were committed are written again then, replacing the same entities.
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure != null)
+				throw new ProcessException(failure);
+		}
+		batchSize.update(contents.size(), parseNanos + System.nanoTime() - writeStart);
+
+		// When not a single FlowFile could be written, the repository is more likely to blame than the FlowFiles.
+		if (isolateFailures && parsed.size() > 1 && parsed.stream().noneMatch(index -> committed[index]))
+			throw new ProcessException("None of the " + parsed.size() + " FlowFiles in the batch could be written to the repository");
+		return committed;
+	}
 
-		Repository repository = repositoryManager.getRepository(context.getProperty(REPOSITORY_ID).getValue());
-		if (flowFiles.isEmpty()) {
+	/**
+	 * Writes FlowFiles to the repository in one transaction. If that fails, both halves are written separately,
+	 * until the FlowFiles that can't be written are isolated.
+	 * @param flowFiles The FlowFiles of the batch.
+	 * @param contents The contents of the FlowFiles of the batch.
+	 * @param indexes The FlowFiles to write, as indexes in the batch, in order.
+	 * @param committed Receives per FlowFile in the batch whether it was committed.
+	 */
+	private void writeIsolatingFailures(ProcessContext context, List<FlowFile> flowFiles, List<FlowFileContent> contents, List<Integer> indexes,
+										WriteStatistics statistics, boolean[] committed) {
+		if (indexes.isEmpty())
+			return;
+		List<FlowFileContent> indexedContents = new ArrayList<>();
+		indexes.forEach(index -> indexedContents.add(contents.get(index)));
+		try {
+			writeToRepo(context, indexedContents, statistics);
+			indexes.forEach(index -> committed[index] = true);
+		} catch (RuntimeException e) {
+			// A repository that can't be reached fails any FlowFile, so don't route them to failure.
+			if (!isRepositoryAvailable())
+				throw new RepositoryUnavailableException(e);
+			if (indexes.size() == 1) {
+				getLogger().error("Failed to write {} to the repository, routing to failure", flowFiles.get(indexes.get(0)), e);
+				statistics.isolatedFlowFiles.incrementAndGet();
+				return;
+			}
+			statistics.bisections.incrementAndGet();
+			int half = indexes.size() / 2;
+			writeIsolatingFailures(context, flowFiles, contents, indexes.subList(0, half), statistics, committed);
+			writeIsolatingFailures(context, flowFiles, contents, indexes.subList(half, indexes.size()), statistics, committed);
+		}
+	}
+
+	/**
+	 * Checks whether the repository can be queried, to tell a failing repository apart from FlowFiles that can't be written.
+	 */
+	private boolean isRepositoryAvailable() {
+		try (RepositoryConnection connection = getConnection()) {
+			return connection.prepareBooleanQuery(QueryLanguage.SPARQL, "ASK {}").evaluate();
+		} catch (RuntimeException e) {
+			getLogger().warn("The repository can't be queried", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Thrown when writing fails because the repository itself can't be reached, and not because of the FlowFiles.
+	 */
+	private static class RepositoryUnavailableException extends ProcessException {
+		RepositoryUnavailableException(Throwable cause) {
+			super("The repository is unavailable", cause);
+		}
+	}
+
+	/**
+	 * Waits for a batch to be written. A failure to write it is thrown again on this thread.
+	 */
+	private static boolean[] awaitBatch(Future<boolean[]> writing) {
+		try {
+			return writing.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new ProcessException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProcessException(e);
+		}
+	}
+
+	/**
+	 * The time spent in each phase of writing a batch, and the number of skipped entities, summed over all partitions.
+	 */
+	private static class WriteStatistics {
+		final AtomicLong parseNanos = new AtomicLong();
+		final AtomicLong deleteNanos = new AtomicLong();
+		final AtomicLong addNanos = new AtomicLong();
+		final AtomicLong commitNanos = new AtomicLong();
+		final AtomicLong unchangedEntities = new AtomicLong();
+		final AtomicLong newEntities = new AtomicLong();
+		final AtomicLong isolatedFlowFiles = new AtomicLong();
+		final AtomicLong bisections = new AtomicLong();
+		final AtomicLong addedStatements = new AtomicLong();
+		final AtomicLong removedStatements = new AtomicLong();
+	}
+
+	/**
+	 * Replaces the entities in the FlowFiles in the repository, in one transaction.
+	 * @param context The process context.
+	 * @param contents The contents of the FlowFiles, in order.
+	 * @param statistics The statistics to add to.
+	 */
+	private void writeToRepo(ProcessContext context, List<FlowFileContent> contents, WriteStatistics statistics) {
+		if (context.getProperty(UPLOAD_MODE).getValue().equals(UPLOAD_PASS_THROUGH.getValue())) {
+			writeNQuadsToRepo(context, contents, statistics);
 			return;
 		}
-		final AtomicBoolean committed = new AtomicBoolean(false);
-		try (RepositoryConnection dbConnection = repository.getConnection()) {
+		final List<Model> models = new ArrayList<>();
+		contents.forEach(content -> models.add(content.model));
+		final Map<Resource, String> committedHashes = new HashMap<>();
+		if (contentHashIndex != null)
+			statistics.unchangedEntities.addAndGet(skipUnchangedEntities(models, committedHashes));
+
+		try (RepositoryConnection dbConnection = getConnection()) {
 			// As we are bulk-loading, set isolation level to none for improved performance.
 			dbConnection.setIsolationLevel(IsolationLevels.NONE);
 			dbConnection.begin();
 
-			for (FlowFile flowFile : flowFiles) {
-				session.read(flowFile, new InputStreamCallback() {
-					@Override
-					public void process(InputStream in) throws IOException {
-						Model updateModel = Rio.parse(in, "", RDFFormat.NQUADS);
+			final String deleteStrategy = context.getProperty(DELETE_STRATEGY).getValue();
+			if (deleteStrategy.equals(DELETE_GRAPH_PER_ENTITY.getValue())) {
+				long start = System.nanoTime();
+				final Model batchModel = mergeBatch(models);
+				final Set<Resource> entityIds = getSubjectsFromModel(batchModel);
+				// Replacing an entity is clearing its graph, no need to look up its blank nodes.
+				possiblyStoredEntities(entityIds, statistics).forEach(dbConnection::clear);
+				statistics.deleteNanos.addAndGet(System.nanoTime() - start);
 
-						Set<Resource> entityIds = getSubjectsFromModel(updateModel);
+				start = System.nanoTime();
+				addToEntityGraphs(batchModel, entityIds, dbConnection);
+				statistics.addNanos.addAndGet(System.nanoTime() - start);
+			} else if (deleteStrategy.equals(DELETE_BULK_UPDATE.getValue()) || deleteStrategy.equals(DELETE_DIFF.getValue())) {
+				long start = System.nanoTime();
+				final Model batchModel = mergeBatch(models);
+				final int blankNodeDepth = context.getProperty(BLANK_NODE_DEPTH).asInteger();
+				if (deleteStrategy.equals(DELETE_DIFF.getValue())) {
+					Model addedModel = diffEntitiesInRepo(batchModel, possiblyStoredEntities(getSubjectsFromModel(batchModel), statistics),
+							blankNodeDepth, dbConnection, statistics);
+					statistics.deleteNanos.addAndGet(System.nanoTime() - start);
 
-						// Delete the old version of the entity (ldes member) from the db.
-						deleteEntitiesFromRepo(entityIds, dbConnection);
+					start = System.nanoTime();
+					addToRepo(context, addedModel, dbConnection);
+					statistics.addNanos.addAndGet(System.nanoTime() - start);
+				} else {
+					bulkDeleteEntitiesFromRepo(possiblyStoredEntities(getSubjectsFromModel(batchModel), statistics), blankNodeDepth, dbConnection);
+					statistics.deleteNanos.addAndGet(System.nanoTime() - start);
 
-						// Save the new data to the DB.
-						String namedGraph = context.getProperty(NAMED_GRAPH).getValue();
-						if (!namedGraph.isEmpty()) {
-							IRI namedGraphIRI = dbConnection.getValueFactory().createIRI(namedGraph);
-							dbConnection.add(updateModel, namedGraphIRI);
-						} else
-							dbConnection.add(updateModel);
+					start = System.nanoTime();
+					addToRepo(context, batchModel, dbConnection);
+					statistics.addNanos.addAndGet(System.nanoTime() - start);
+				}
+			} else {
+				for (Model updateModel : models) {
+					// Delete the old version of the entity (ldes member) from the db.
+					long start = System.nanoTime();
+					deleteEntitiesFromRepo(possiblyStoredEntities(getSubjectsFromModel(updateModel), statistics), dbConnection);
+					statistics.deleteNanos.addAndGet(System.nanoTime() - start);
 
-					}
-				});
+					// Save the new data to the DB.
+					start = System.nanoTime();
+					addToRepo(context, updateModel, dbConnection);
+					statistics.addNanos.addAndGet(System.nanoTime() - start);
+				}
 			}
+			long start = System.nanoTime();
 			dbConnection.commit();
-			committed.set(true);
+			statistics.commitNanos.addAndGet(System.nanoTime() - start);
 		}
-		for (FlowFile flowFile : flowFiles) {
-			if (committed.get())
-				session.transfer(flowFile, REL_SUCCESS);
+		if (contentHashIndex != null)
+			contentHashIndex.putAll(committedHashes);
+	}
+
+	/**
+	 * Looks the entities up in the written subjects filter, and adds them to it.
+	 * They are added before the commit, so that a later FlowFile in the same transaction doesn't see them as new.
+	 * A failed transaction only leaves false positives behind.
+	 * @param entityIds Entities about to be written.
+	 * @param statistics The statistics to add to.
+	 * @return The entities that might have been written before.
+	 */
+	private Set<Resource> possiblyStoredEntities(Set<Resource> entityIds, WriteStatistics statistics) {
+		if (writtenSubjects == null)
+			return entityIds;
+		Set<Resource> possiblyStored = new HashSet<>();
+		for (Resource entityId : entityIds) {
+			if (writtenSubjects.mightContain(entityId.stringValue()))
+				possiblyStored.add(entityId);
 			else
-				session.transfer(flowFile, REL_FAILURE);
+				statistics.newEntities.incrementAndGet();
+			writtenSubjects.put(entityId.stringValue());
 		}
-		session.commit();
+		return possiblyStored;
+	}
+
+	/**
+	 * Fills the written subjects filter with the subjects in the repository, if it couldn't be loaded from its file.
+	 */
+	private synchronized void rebuildWrittenSubjects() {
+		if (!writtenSubjectsRebuildNeeded)
+			return;
+		try (RepositoryConnection connection = getConnection()) {
+			connection.prepareTupleQuery(QueryLanguage.SPARQL, "SELECT DISTINCT ?s WHERE { ?s ?p ?o FILTER(isIRI(?s)) }")
+					.evaluate()
+					.forEach(bindings -> writtenSubjects.put(bindings.getValue("s").stringValue()));
+		}
+		writtenSubjectsRebuildNeeded = false;
+	}
+
+	/**
+	 * Replaces the entities in the FlowFiles in the repository in one transaction, sending the N-Quads as they are.
+	 * The previous versions are removed with the per subject or bulk update delete strategy.
+	 * @param context The process context.
+	 * @param contents The contents of the FlowFiles, in order.
+	 * @param statistics The statistics to add to.
+	 */
+	private void writeNQuadsToRepo(ProcessContext context, List<FlowFileContent> contents, WriteStatistics statistics) {
+		final boolean bulkUpdate = context.getProperty(DELETE_STRATEGY).getValue().equals(DELETE_BULK_UPDATE.getValue());
+		try (RepositoryConnection dbConnection = getConnection()) {
+			// As we are bulk-loading, set isolation level to none for improved performance.
+			dbConnection.setIsolationLevel(IsolationLevels.NONE);
+			dbConnection.begin();
+
+			final int blankNodeDepth = context.getProperty(BLANK_NODE_DEPTH).asInteger();
+			final Set<Resource> batchEntityIds = new HashSet<>();
+			if (bulkUpdate) {
+				long start = System.nanoTime();
+				contents.forEach(content -> batchEntityIds.addAll(content.entityIds));
+				bulkDeleteEntitiesFromRepo(possiblyStoredEntities(batchEntityIds, statistics), blankNodeDepth, dbConnection);
+				statistics.deleteNanos.addAndGet(System.nanoTime() - start);
+				batchEntityIds.clear();
+			}
+			for (FlowFileContent content : contents) {
+				long start = System.nanoTime();
+				if (bulkUpdate) {
+					// An entity that is in an earlier FlowFile of the batch as well was added in this transaction.
+					final Set<Resource> repeatedEntityIds = new HashSet<>(content.entityIds);
+					repeatedEntityIds.retainAll(batchEntityIds);
+					if (!repeatedEntityIds.isEmpty())
+						bulkDeleteEntitiesFromRepo(repeatedEntityIds, blankNodeDepth, dbConnection);
+					batchEntityIds.addAll(content.entityIds);
+				} else
+					deleteEntitiesFromRepo(possiblyStoredEntities(content.entityIds, statistics), dbConnection);
+				statistics.deleteNanos.addAndGet(System.nanoTime() - start);
+
+				start = System.nanoTime();
+				if (context.getProperty(NAMED_GRAPH).isSet()) {
+					IRI namedGraphIRI = dbConnection.getValueFactory().createIRI(context.getProperty(NAMED_GRAPH).getValue());
+					dbConnection.add(new ByteArrayInputStream(content.nquads), "", RDFFormat.NQUADS, namedGraphIRI);
+				} else
+					dbConnection.add(new ByteArrayInputStream(content.nquads), "", RDFFormat.NQUADS);
+				statistics.addNanos.addAndGet(System.nanoTime() - start);
+			}
+			long start = System.nanoTime();
+			dbConnection.commit();
+			statistics.commitNanos.addAndGet(System.nanoTime() - start);
+		} catch (IOException e) {
+			throw new ProcessException("Failed to send N-Quads to the repository", e);
+		}
+	}
+
+	/**
+	 * Leaves the entities of which the content didn't change since they were last committed out of the models.
+	 * The parsed FlowFiles themselves are not changed, so that the unchanged entities are determined again when a part
+	 * of the batch is retried without the FlowFiles that failed.
+	 * @param models The parsed FlowFiles, in order. The ones with unchanged entities are replaced by copies without them.
+	 * @param committedHashes Receives the content hashes of the entities that are written.
+	 * @return The number of unchanged entities.
+	 */
+	private int skipUnchangedEntities(List<Model> models, Map<Resource, String> committedHashes) {
+		int unchangedEntities = 0;
+		for (int i = 0; i < models.size(); i++) {
+			final Model model = models.get(i);
+			// Hash all entities before removing any, as the removal changes the model.
+			Map<Resource, String> contentHashes = new HashMap<>();
+			getSubjectsFromModel(model).forEach(entityId -> contentHashes.put(entityId, ContentHashIndex.getContentHash(model, entityId)));
+
+			Set<Resource> unchangedEntityIds = new HashSet<>();
+			contentHashes.forEach((entityId, contentHash) -> {
+				// An earlier FlowFile in the batch takes precedence over the index.
+				String previousHash = committedHashes.containsKey(entityId) ? committedHashes.get(entityId) : contentHashIndex.get(entityId);
+				if (contentHash.equals(previousHash))
+					unchangedEntityIds.add(entityId);
+				else
+					committedHashes.put(entityId, contentHash);
+			});
+			if (!unchangedEntityIds.isEmpty()) {
+				Model changedModel = new LinkedHashModel(model);
+				removeEntitiesFromModel(unchangedEntityIds, changedModel);
+				models.set(i, changedModel);
+			}
+			unchangedEntities += unchangedEntityIds.size();
+		}
+		return unchangedEntities;
+	}
+
+	/**
+	 * Splits a batch in partitions, so that the FlowFiles that share an entity are in the same partition.
+	 * A group of FlowFiles is assigned to a partition by the hash of its first entity.
+	 * @param batchEntityIds The entities of every FlowFile.
+	 * @param partitionCount The number of partitions.
+	 * @return The non-empty partitions, as indexes in the batch, in batch order.
+	 */
+	static List<List<Integer>> partitionByEntity(List<Set<Resource>> batchEntityIds, int partitionCount) {
+		// Union find over the FlowFiles, joining FlowFiles that share an entity.
+		int[] parents = new int[batchEntityIds.size()];
+		for (int i = 0; i < parents.length; i++)
+			parents[i] = i;
+		Map<Resource, Integer> entityOwners = new HashMap<>();
+		List<Resource> firstEntities = new ArrayList<>();
+		for (int i = 0; i < batchEntityIds.size(); i++) {
+			Set<Resource> entityIds = batchEntityIds.get(i);
+			firstEntities.add(entityIds.isEmpty() ? null : entityIds.iterator().next());
+			for (Resource entityId : entityIds) {
+				Integer owner = entityOwners.putIfAbsent(entityId, i);
+				if (owner != null)
+					parents[findRoot(parents, i)] = findRoot(parents, owner);
+			}
+		}
+
+		Map<Integer, List<Integer>> partitions = new TreeMap<>();
+		for (int i = 0; i < batchEntityIds.size(); i++) {
+			Resource entityId = firstEntities.get(findRoot(parents, i));
+			int partition = entityId == null ? 0 : Math.floorMod(entityId.stringValue().hashCode(), partitionCount);
+			partitions.computeIfAbsent(partition, p -> new ArrayList<>()).add(i);
+		}
+		return new ArrayList<>(partitions.values());
+	}
+
+	private static int findRoot(int[] parents, int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Collects the whole batch in one model, so that all entities can be handled at once.
+	 * A later FlowFile in the batch replaces the entities of an earlier one.
+	 * @param models The parsed FlowFiles, in order.
+	 * @return The entities of the batch.
+	 */
+	private static Model mergeBatch(List<Model> models) {
+		final Model batchModel = new LinkedHashModel();
+		for (Model updateModel : models) {
+			removeEntitiesFromModel(getSubjectsFromModel(updateModel), batchModel);
+			batchModel.addAll(updateModel);
+		}
+		return batchModel;
+	}
+
+	/**
+	 * Adds every entity, including its blank nodes, to the named graph with the IRI of the entity.
+	 * Statements that don't belong to any entity are added to the default graph.
+	 * @param batchModel The entities of the batch.
+	 * @param entityIds The subjects of the entities.
+	 * @param connection The DB connection.
+	 */
+	private static void addToEntityGraphs(Model batchModel, Set<Resource> entityIds, RepositoryConnection connection) {
+		final Model remainingModel = new LinkedHashModel(batchModel);
+		for (Resource entityId : entityIds) {
+			Model entityModel = new LinkedHashModel(batchModel.filter(entityId, null, null));
+			addBlankNodeClosures(batchModel, entityModel);
+			connection.add(entityModel, entityId);
+			remainingModel.removeAll(entityModel);
+		}
+		if (!remainingModel.isEmpty())
+			connection.add(remainingModel);
+	}
+
+	/**
+	 * Adds a model to the repository, in the configured named graph if any.
+	 * @param context The process context.
+	 * @param model The statements to add.
+	 * @param connection The DB connection.
+	 */
+	private static void addToRepo(ProcessContext context, Model model, RepositoryConnection connection) {
+		if (context.getProperty(NAMED_GRAPH).isSet()) {
+			IRI namedGraphIRI = connection.getValueFactory().createIRI(context.getProperty(NAMED_GRAPH).getValue());
+			connection.add(model, namedGraphIRI);
+		} else
+			connection.add(model);
 	}
 
 	/**
@@ -138,6 +1143,36 @@ public class RDF4JRepositoryMaterialisation extends AbstractProcessor {
 		return entityIds;
 	}
 
+	/**
+	 * Returns how deep blank nodes are nested inside the entities of a model, as the number of blank nodes on the
+	 * longest path from an entity. Blank nodes referencing each other in a cycle are only followed once.
+	 * @param model A graph
+	 * @return The blank node depth, 0 if the entities don't refer to blank nodes.
+	 */
+	static int getBlankNodeDepth(Model model) {
+		final Map<Resource, Integer> blankNodeDepths = new HashMap<>();
+		int depth = 0;
+		for (Resource entityId : getSubjectsFromModel(model))
+			depth = Math.max(depth, getBlankNodeDepth(model, entityId, blankNodeDepths, new HashSet<>()));
+		return depth;
+	}
+
+	private static int getBlankNodeDepth(Model model, Resource subject, Map<Resource, Integer> blankNodeDepths, Set<Resource> inProgress) {
+		if (blankNodeDepths.containsKey(subject))
+			return blankNodeDepths.get(subject);
+		if (!inProgress.add(subject))
+			return 0;
+		int depth = 0;
+		for (Statement statement : model.filter(subject, null, null)) {
+			if (statement.getObject().isBNode())
+				depth = Math.max(depth, 1 + getBlankNodeDepth(model, (Resource) statement.getObject(), blankNodeDepths, inProgress));
+		}
+		inProgress.remove(subject);
+		if (subject.isBNode())
+			blankNodeDepths.put(subject, depth);
+		return depth;
+	}
+
 	/**
 	 * Delete an entity, including its blank nodes, from a repository.
 	 * @param entityIds The subjects of the entities to delete.
@@ -162,6 +1197,208 @@ public class RDF4JRepositoryMaterialisation extends AbstractProcessor {
 			connection.remove(subject, null, null);
 		}
 	}
+
+	/**
+	 * Delete entities, including their blank nodes, from a repository with a single SPARQL UPDATE.
+	 * A property path can't be limited to blank nodes, so the blank node hops are spelled out up to a fixed depth.
+	 * @param entityIds The subjects of the entities to delete.
+	 * @param blankNodeDepth How deep blank nodes can be nested inside an entity.
+	 * @param connection The DB connection.
+	 */
+	static void bulkDeleteEntitiesFromRepo(Set<Resource> entityIds, int blankNodeDepth, RepositoryConnection connection) {
+		if (entityIds.isEmpty())
+			return;
+		connection.prepareUpdate(QueryLanguage.SPARQL, buildBulkDeleteUpdate(entityIds, blankNodeDepth)).execute();
+	}
+
+	/**
+	 * Builds a SPARQL UPDATE that removes the statements of the entities and of the blank nodes nested inside them.
+	 * @param entityIds The subjects of the entities to delete.
+	 * @param blankNodeDepth How deep blank nodes can be nested inside an entity.
+	 * @return The SPARQL UPDATE.
+	 */
+	private static String buildBulkDeleteUpdate(Set<Resource> entityIds, int blankNodeDepth) {
+		return "DELETE { ?s ?p ?o } WHERE {\n" + buildEntityClosurePattern(entityIds, blankNodeDepth) + "}";
+	}
+
+	/**
+	 * Builds a SPARQL graph pattern that matches ?s ?p ?o to the statements of the entities and of the blank nodes nested inside them.
+	 * @param entityIds The subjects of the entities.
+	 * @param blankNodeDepth How deep blank nodes can be nested inside an entity.
+	 * @return The graph pattern.
+	 */
+	private static String buildEntityClosurePattern(Set<Resource> entityIds, int blankNodeDepth) {
+		StringBuilder values = new StringBuilder("VALUES ?entity {");
+		entityIds.forEach(entityId -> values.append(' ').append(NTriplesUtil.toNTriplesString(entityId)));
+		values.append(" }");
+		return buildClosurePattern(values.toString(), "{ ?entity ?p ?o BIND(?entity AS ?s) }", "?p1", blankNodeDepth);
+	}
+
+	/**
+	 * Builds a SPARQL graph pattern that matches ?s ?p ?o to the statements about a root, and about the blank nodes
+	 * nested in it. A property path can't be limited to blank nodes, so the blank node hops are spelled out up to a fixed depth.
+	 * @param values The VALUES block that binds ?entity and the variables used in the root pattern.
+	 * @param rootPattern The group pattern that matches the statements about the root itself.
+	 * @param firstPredicate The predicate of the first hop from ?entity to a blank node.
+	 * @param blankNodeDepth How deep blank nodes can be nested.
+	 * @return The graph pattern.
+	 */
+	private static String buildClosurePattern(String values, String rootPattern, String firstPredicate, int blankNodeDepth) {
+		StringBuilder pattern = new StringBuilder("  ").append(values).append("\n  ").append(rootPattern).append('\n');
+		for (int depth = 1; depth <= blankNodeDepth; depth++) {
+			pattern.append("  UNION { ?entity ").append(firstPredicate).append(" ?b1 FILTER(isBlank(?b1))");
+			for (int hop = 2; hop <= depth; hop++) {
+				pattern.append(String.format(" ?b%d ?p%d ?b%d FILTER(isBlank(?b%d))", hop - 1, hop, hop, hop));
+			}
+			pattern.append(String.format(" ?b%d ?p ?o BIND(?b%d AS ?s) }\n", depth, depth));
+		}
+		return pattern.toString();
+	}
+
+	/**
+	 * Removes the statements of the stored entities that are not in the batch anymore, and returns the statements of
+	 * the batch that are not stored yet. The stored entities are fetched with a single query.
+	 * Blank nodes are compared on their contents. When the blank nodes of an entity for a predicate differ, all of them
+	 * are replaced, as stored blank nodes can only be addressed through a query.
+	 * @param batchModel The entities of the batch.
+	 * @param entityIds The entities of the batch that might be stored, the others are added as a whole.
+	 * @param blankNodeDepth How deep blank nodes can be nested inside an entity.
+	 * @param connection The DB connection.
+	 * @param statistics The statistics to add to.
+	 * @return The statements to add.
+	 */
+	private static Model diffEntitiesInRepo(Model batchModel, Set<Resource> entityIds, int blankNodeDepth, RepositoryConnection connection, WriteStatistics statistics) {
+		final Model addedModel = new LinkedHashModel();
+		for (Resource entityId : getSubjectsFromModel(batchModel)) {
+			if (!entityIds.contains(entityId))
+				addedModel.addAll(batchModel.filter(entityId, null, null));
+		}
+		addBlankNodeClosures(batchModel, addedModel);
+		if (entityIds.isEmpty()) {
+			statistics.addedStatements.addAndGet(addedModel.size());
+			return addedModel;
+		}
+
+		final Model storedModel = QueryResults.asModel(connection.prepareGraphQuery(QueryLanguage.SPARQL,
+				"CONSTRUCT { ?s ?p ?o } WHERE {\n" + buildEntityClosurePattern(entityIds, blankNodeDepth) + "}").evaluate());
+		// The stored statements are fetched without their graph, so compare the batch without graphs as well.
+		final Model batchTriples = new LinkedHashModel();
+		batchModel.forEach(statement -> batchTriples.add(statement.getSubject(), statement.getPredicate(), statement.getObject()));
+
+		final List<Map.Entry<Resource, IRI>> replacedBlankNodes = new ArrayList<>();
+		for (Resource entityId : entityIds) {
+			Map<IRI, List<String>> storedBlankNodes = new HashMap<>();
+			for (Statement statement : storedModel.filter(entityId, null, null)) {
+				if (statement.getObject().isBNode()) {
+					storedBlankNodes.computeIfAbsent(statement.getPredicate(), predicate -> new ArrayList<>())
+							.add(ContentHashIndex.getContentHash(storedModel, (BNode) statement.getObject()));
+				} else if (!batchTriples.contains(entityId, statement.getPredicate(), statement.getObject())) {
+					connection.remove(entityId, statement.getPredicate(), statement.getObject());
+					statistics.removedStatements.incrementAndGet();
+				}
+			}
+			Map<IRI, List<String>> batchBlankNodes = new HashMap<>();
+			for (Statement statement : batchTriples.filter(entityId, null, null)) {
+				if (statement.getObject().isBNode()) {
+					batchBlankNodes.computeIfAbsent(statement.getPredicate(), predicate -> new ArrayList<>())
+							.add(ContentHashIndex.getContentHash(batchTriples, (BNode) statement.getObject()));
+				} else if (!storedModel.contains(entityId, statement.getPredicate(), statement.getObject())) {
+					addedModel.addAll(batchModel.filter(entityId, statement.getPredicate(), statement.getObject()));
+				}
+			}
+
+			Set<IRI> predicates = new HashSet<>(storedBlankNodes.keySet());
+			predicates.addAll(batchBlankNodes.keySet());
+			for (IRI predicate : predicates) {
+				List<String> storedHashes = storedBlankNodes.getOrDefault(predicate, new ArrayList<>());
+				List<String> batchHashes = batchBlankNodes.getOrDefault(predicate, new ArrayList<>());
+				Collections.sort(storedHashes);
+				Collections.sort(batchHashes);
+				if (storedHashes.equals(batchHashes))
+					continue;
+				if (!storedHashes.isEmpty()) {
+					replacedBlankNodes.add(Map.entry(entityId, predicate));
+					statistics.removedStatements.addAndGet(countBlankNodeStatements(storedModel, entityId, predicate));
+				}
+				Model blankNodeModel = new LinkedHashModel();
+				batchModel.filter(entityId, predicate, null).forEach(statement -> {
+					if (statement.getObject().isBNode())
+						blankNodeModel.add(statement);
+				});
+				addBlankNodeClosures(batchModel, blankNodeModel);
+				addedModel.addAll(blankNodeModel);
+			}
+		}
+
+		if (!replacedBlankNodes.isEmpty()) {
+			StringBuilder values = new StringBuilder("VALUES (?entity ?predicate) {");
+			replacedBlankNodes.forEach(entry -> values.append(" (")
+					.append(NTriplesUtil.toNTriplesString(entry.getKey())).append(' ')
+					.append(NTriplesUtil.toNTriplesString(entry.getValue())).append(')'));
+			values.append(" }");
+			connection.prepareUpdate(QueryLanguage.SPARQL, "DELETE { ?s ?p ?o } WHERE {\n" + buildClosurePattern(values.toString(),
+					"{ ?entity ?predicate ?o FILTER(isBlank(?o)) BIND(?entity AS ?s) BIND(?predicate AS ?p) }",
+					"?predicate", blankNodeDepth) + "}").execute();
+		}
+		statistics.addedStatements.addAndGet(addedModel.size());
+		return addedModel;
+	}
+
+	/**
+	 * @return The number of statements of the blank nodes of an entity for a predicate, including the statements linking them.
+	 */
+	private static int countBlankNodeStatements(Model model, Resource entityId, IRI predicate) {
+		Model blankNodeModel = new LinkedHashModel();
+		model.filter(entityId, predicate, null).forEach(statement -> {
+			if (statement.getObject().isBNode())
+				blankNodeModel.add(statement);
+		});
+		addBlankNodeClosures(model, blankNodeModel);
+		return blankNodeModel.size();
+	}
+
+	/**
+	 * Adds the statements about the blank nodes referenced in a model, and the blank nodes nested inside them.
+	 * @param sourceModel The model to take the statements from.
+	 * @param model The model to add to.
+	 */
+	private static void addBlankNodeClosures(Model sourceModel, Model model) {
+		Stack<Resource> subjectStack = new Stack<>();
+		Set<Resource> visited = new HashSet<>();
+		model.objects().forEach(object -> {
+			if (object.isBNode() && visited.add((Resource) object))
+				subjectStack.push((Resource) object);
+		});
+		while (!subjectStack.isEmpty()) {
+			Resource subject = subjectStack.pop();
+			for (Statement statement : sourceModel.filter(subject, null, null)) {
+				model.add(statement);
+				if (statement.getObject().isBNode() && visited.add((Resource) statement.getObject()))
+					subjectStack.push((Resource) statement.getObject());
+			}
+		}
+	}
+
+	/**
+	 * Remove entities, including their blank nodes, from a model.
+	 * @param entityIds The subjects of the entities to remove.
+	 * @param model The model.
+	 */
+	private static void removeEntitiesFromModel(Set<Resource> entityIds, Model model) {
+		Stack<Resource> subjectStack = new Stack<>();
+		entityIds.forEach(subjectStack::push);
+		while (!subjectStack.isEmpty()) {
+			Resource subject = subjectStack.pop();
+			Model subjectModel = model.filter(subject, null, null);
+			subjectModel.objects().forEach((Value object) -> {
+				if (object.isBNode()) {
+					subjectStack.push((Resource) object);
+				}
+			});
+			model.remove(subject, null, null);
+		}
+	}
+
 	@Override
 	public Set<Relationship> getRelationships() {
 		final Set<Relationship> relationships = new HashSet<>();
@@ -173,9 +1410,25 @@ public class RDF4JRepositoryMaterialisation extends AbstractProcessor {
 	@Override
 	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
 		final List<PropertyDescriptor> properties = new ArrayList<>();
+		properties.add(STORAGE);
 		properties.add(SPARQL_HOST);
+		properties.add(DATA_DIRECTORY);
 		properties.add(REPOSITORY_ID);
+		properties.add(CONNECTION_SERVICE);
 		properties.add(NAMED_GRAPH);
+		properties.add(MIN_BATCH_SIZE);
+		properties.add(MAX_BATCH_SIZE);
+		properties.add(TARGET_TRANSACTION_TIME);
+		properties.add(BATCHES_PER_TRIGGER);
+		properties.add(ISOLATE_FAILURES);
+		properties.add(PARALLEL_WRITERS);
+		properties.add(CONTENT_HASH_INDEX_FILE);
+		properties.add(CONTENT_HASH_INDEX_SIZE);
+		properties.add(WRITTEN_SUBJECTS_FILTER_FILE);
+		properties.add(WRITTEN_SUBJECTS_FILTER_CAPACITY);
+		properties.add(DELETE_STRATEGY);
+		properties.add(BLANK_NODE_DEPTH);
+		properties.add(UPLOAD_MODE);
 		return properties;
 	}
 }
@@ -0,0 +1,164 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.base.RepositoryConnectionWrapper;
+import org.eclipse.rdf4j.repository.manager.RemoteRepositoryManager;
+import org.eclipse.rdf4j.repository.manager.RepositoryManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+@Tags({ "ldes, rdf4j-repository, vsds" })
+@CapabilityDescription("Keeps a bounded pool of connections to an RDF4J remote repository, to be shared by processors.")
+public class StandardRDF4JRepositoryConnectionService extends AbstractControllerService implements RDF4JRepositoryConnectionService {
+	private RepositoryManager repositoryManager;
+
+	private String repositoryId;
+
+	private volatile Repository repository;
+
+	private Semaphore permits;
+
+	private final BlockingQueue<RepositoryConnection> idleConnections = new LinkedBlockingQueue<>();
+
+	private long maxWaitMillis;
+
+	static final PropertyDescriptor SPARQL_HOST = new PropertyDescriptor.Builder()
+			.name("REF4J remote repository location")
+			.description("The hostname and port of the server.")
+			.defaultValue("http://graphdb:7200")
+			.required(true)
+			.addValidator(StandardValidators.URL_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor REPOSITORY_ID = new PropertyDescriptor.Builder()
+			.name("Repository ID")
+			.description("The repository to connect to.")
+			.required(true)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor MAX_CONNECTIONS = new PropertyDescriptor.Builder()
+			.name("Maximum connections")
+			.description("The maximum number of connections to the repository in use at the same time, over all processors using this service.")
+			.defaultValue("8")
+			.required(true)
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.build();
+
+	static final PropertyDescriptor MAX_WAIT_TIME = new PropertyDescriptor.Builder()
+			.name("Maximum wait time")
+			.description("How long to wait for a connection to become available before failing.")
+			.defaultValue("30 sec")
+			.required(true)
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+			.build();
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		final List<PropertyDescriptor> properties = new ArrayList<>();
+		properties.add(SPARQL_HOST);
+		properties.add(REPOSITORY_ID);
+		properties.add(MAX_CONNECTIONS);
+		properties.add(MAX_WAIT_TIME);
+		return properties;
+	}
+
+	@OnEnabled
+	public void onEnabled(final ConfigurationContext context) {
+		this.repositoryManager = new RemoteRepositoryManager(context.getProperty(SPARQL_HOST).getValue());
+		this.repositoryId = context.getProperty(REPOSITORY_ID).getValue();
+		this.repository = null;
+		this.permits = new Semaphore(context.getProperty(MAX_CONNECTIONS).asInteger(), true);
+		this.maxWaitMillis = context.getProperty(MAX_WAIT_TIME).asTimePeriod(TimeUnit.MILLISECONDS);
+	}
+
+	@OnDisabled
+	public void onDisabled() {
+		RepositoryConnection connection;
+		while ((connection = idleConnections.poll()) != null) {
+			connection.close();
+		}
+		if (repositoryManager != null) {
+			repositoryManager.shutDown();
+			repositoryManager = null;
+		}
+	}
+
+	@Override
+	public RepositoryConnection getConnection() throws ProcessException {
+		try {
+			if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS))
+				throw new ProcessException("No connection to the repository became available within " + maxWaitMillis + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProcessException("Interrupted while waiting for a connection to the repository", e);
+		}
+		try {
+			RepositoryConnection connection = idleConnections.poll();
+			while (connection != null && !connection.isOpen()) {
+				connection = idleConnections.poll();
+			}
+			if (connection == null)
+				connection = getRepository().getConnection();
+			return new PooledConnection(connection);
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Looks the repository up once, on first use.
+	 */
+	Repository getRepository() {
+		if (repository == null)
+			repository = repositoryManager.getRepository(repositoryId);
+		return repository;
+	}
+
+	/**
+	 * A connection that goes back to the pool when it is closed.
+	 */
+	private class PooledConnection extends RepositoryConnectionWrapper {
+		private boolean released = false;
+
+		PooledConnection(RepositoryConnection connection) {
+			super(connection.getRepository(), connection);
+		}
+
+		@Override
+		public void close() {
+			if (released)
+				return;
+			released = true;
+			RepositoryConnection connection = getDelegate();
+			try {
+				if (connection.isActive())
+					connection.rollback();
+				if (connection.isOpen())
+					idleConnections.add(connection);
+			} catch (RuntimeException e) {
+				// A connection that can't be reset is not reused.
+				getLogger().warn("Discarding repository connection", e);
+				connection.close();
+			} finally {
+				permits.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A Bloom filter of the subjects written to a repository. A subject that was not added is reported as such with
+ * certainty, a subject that was added might also be reported for another subject, with the configured probability.
+ */
+class SubjectBloomFilter {
+	private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+	private final long[] bits;
+	private final int numBits;
+	private final int numHashes;
+
+	/**
+	 * @param capacity The number of subjects for which the false positive probability stays about 1%.
+	 */
+	SubjectBloomFilter(int capacity) {
+		this(optimalNumBits(capacity), optimalNumHashes(capacity, optimalNumBits(capacity)));
+	}
+
+	private SubjectBloomFilter(int numBits, int numHashes) {
+		this.numBits = numBits;
+		this.numHashes = numHashes;
+		this.bits = new long[(numBits + 63) / 64];
+	}
+
+	private static int optimalNumBits(int capacity) {
+		double numBits = -capacity * Math.log(FALSE_POSITIVE_PROBABILITY) / (Math.log(2) * Math.log(2));
+		return (int) Math.max(64, Math.min(Integer.MAX_VALUE - 64, Math.ceil(numBits)));
+	}
+
+	private static int optimalNumHashes(int capacity, int numBits) {
+		return Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+	}
+
+	/**
+	 * @return True if the filter has the size of a new filter for the capacity.
+	 */
+	boolean hasCapacity(int capacity) {
+		return numBits == optimalNumBits(capacity) && numHashes == optimalNumHashes(capacity, numBits);
+	}
+
+	synchronized void put(String subject) {
+		long hash1 = hash(subject);
+		long hash2 = mix(hash1);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = (int) Math.floorMod(hash1 + i * hash2, (long) numBits);
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return False if the subject was certainly not added, true if it might have been.
+	 */
+	synchronized boolean mightContain(String subject) {
+		long hash1 = hash(subject);
+		long hash2 = mix(hash1);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = (int) Math.floorMod(hash1 + i * hash2, (long) numBits);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the UTF-8 bytes of a string.
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * The SplitMix64 finaliser, to derive a second hash.
+	 */
+	private static long mix(long hash) {
+		hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+		return (hash ^ (hash >>> 31)) | 1;
+	}
+
+	/**
+	 * Loads a filter from a file, and removes the file. The file is only written again when the processor stops, so that
+	 * a filter that missed subjects because of a crash is never used.
+	 * @param file The filter file.
+	 * @return The filter, or null if the file doesn't exist.
+	 */
+	static SubjectBloomFilter load(Path file) throws IOException {
+		if (!Files.exists(file))
+			return null;
+		SubjectBloomFilter filter;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			filter = new SubjectBloomFilter(in.readInt(), in.readInt());
+			for (int i = 0; i < filter.bits.length; i++)
+				filter.bits[i] = in.readLong();
+		}
+		Files.delete(file);
+		return filter;
+	}
+
+	/**
+	 * Saves the filter to a file, replacing it at once.
+	 * @param file The filter file.
+	 */
+	synchronized void save(Path file) throws IOException {
+		Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+			out.writeInt(numBits);
+			out.writeInt(numHashes);
+			for (long word : bits)
+				out.writeLong(word);
+		}
+		Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,54 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AdaptiveBatchSizeTest {
+
+	private static final long MILLIS = 1_000_000;
+
+	@Test
+	public void testGrowsUnderTargetTime() {
+		AdaptiveBatchSize batchSize = new AdaptiveBatchSize(1, 500, 1000, 50);
+
+		// 50 FlowFiles in 100 ms would allow 500 in a second, but the size at most doubles per batch.
+		batchSize.update(50, 100 * MILLIS);
+		assertEquals(100, batchSize.get());
+		batchSize.update(100, 200 * MILLIS);
+		assertEquals(200, batchSize.get());
+	}
+
+	@Test
+	public void testShrinksOverTargetTime() {
+		AdaptiveBatchSize batchSize = new AdaptiveBatchSize(1, 500, 1000, 50);
+
+		// 50 FlowFiles in 2 seconds would allow 25 in a second.
+		batchSize.update(50, 2000 * MILLIS);
+		assertEquals(25, batchSize.get());
+		// At most halves per batch.
+		batchSize.update(25, 25_000 * MILLIS);
+		assertEquals(12, batchSize.get());
+	}
+
+	@Test
+	public void testStaysWithinBounds() {
+		AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 80, 1000, 500);
+		assertEquals(80, batchSize.get());
+
+		for (int i = 0; i < 5; i++)
+			batchSize.update(batchSize.get(), MILLIS);
+		assertEquals(80, batchSize.get());
+
+		for (int i = 0; i < 10; i++)
+			batchSize.update(batchSize.get(), 60_000 * MILLIS);
+		assertEquals(10, batchSize.get());
+	}
+
+	@Test
+	public void testIgnoresEmptyBatches() {
+		AdaptiveBatchSize batchSize = new AdaptiveBatchSize(1, 500, 1000, 50);
+		batchSize.update(0, 5000 * MILLIS);
+		assertEquals(50, batchSize.get());
+	}
+}
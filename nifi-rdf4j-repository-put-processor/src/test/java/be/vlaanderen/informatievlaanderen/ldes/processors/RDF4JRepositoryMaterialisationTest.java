@@ -0,0 +1,500 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.util.Models;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.repository.base.RepositoryConnectionWrapper;
+import org.eclipse.rdf4j.repository.manager.LocalRepositoryManager;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RDF4JRepositoryMaterialisationTest {
+
+	public static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+	@TempDir
+	Path dataDirectory;
+
+	private Repository repository;
+
+	private boolean embedded;
+
+	private TestRunner testRunner;
+
+	public final String FirstVersion = """
+		<http://example.org/entity> <http://example.org/name> "First" .
+		<http://example.org/entity> <http://example.org/address> _:address .
+		_:address <http://example.org/street> _:street .
+		_:street <http://example.org/name> "Old street" .
+		<http://example.org/entity> <http://example.org/knows> <http://example.org/other> .
+		""";
+
+	public final String SecondVersion = """
+		<http://example.org/entity> <http://example.org/name> "Second" .
+		<http://example.org/entity> <http://example.org/address> _:address .
+		_:address <http://example.org/street> "New street" .
+		""";
+
+	public final String OtherEntity = """
+		<http://example.org/other> <http://example.org/address> _:address .
+		_:address <http://example.org/street> "Other street" .
+		""";
+
+	public static final IRI Invalid = vf.createIRI("http://example.org/invalid");
+
+	/**
+	 * Wraps the connections to the memory store, to intercept what the processor does with them.
+	 */
+	private UnaryOperator<RepositoryConnection> wrapConnection;
+
+	/**
+	 * Hands out connections to a memory store.
+	 */
+	public static class MemoryConnectionService extends AbstractControllerService implements RDF4JRepositoryConnectionService {
+		private final Supplier<RepositoryConnection> connections;
+
+		MemoryConnectionService(Supplier<RepositoryConnection> connections) {
+			this.connections = connections;
+		}
+
+		@Override
+		public RepositoryConnection getConnection() {
+			return connections.get();
+		}
+	}
+
+	@BeforeEach
+	public void init() throws InitializationException {
+		repository = new SailRepository(new MemoryStore());
+		testRunner = TestRunners.newTestRunner(RDF4JRepositoryMaterialisation.class);
+		testRunner.setAllowSynchronousSessionCommits(true);
+		wrapConnection = connection -> connection;
+		MemoryConnectionService connectionService = new MemoryConnectionService(() -> wrapConnection.apply(repository.getConnection()));
+		testRunner.addControllerService("connections", connectionService);
+		testRunner.enableControllerService(connectionService);
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.CONNECTION_SERVICE, "connections");
+		embedded = false;
+	}
+
+	/**
+	 * Writes to an embedded repository in the data directory, instead of through the connection service.
+	 */
+	private void useEmbeddedRepository(AllowableValue storage) {
+		testRunner.removeProperty(RDF4JRepositoryMaterialisation.CONNECTION_SERVICE);
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.STORAGE, storage.getValue());
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.DATA_DIRECTORY, dataDirectory.toString());
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.REPOSITORY_ID, "test");
+		embedded = true;
+	}
+
+	@AfterEach
+	public void shutDown() {
+		repository.shutDown();
+	}
+
+	/**
+	 * Writes the versions in separate runs, and returns the contents of the repository afterwards.
+	 */
+	private Model writeVersions(String... versions) {
+		for (String version : versions) {
+			testRunner.enqueue(version);
+			testRunner.run();
+		}
+		if (!embedded) {
+			try (RepositoryConnection connection = repository.getConnection()) {
+				return QueryResults.asModel(connection.getStatements(null, null, null));
+			}
+		}
+		// The processor has released the embedded repository when it stopped at the end of the run.
+		LocalRepositoryManager repositoryManager = new LocalRepositoryManager(dataDirectory.toFile());
+		repositoryManager.init();
+		try (RepositoryConnection connection = repositoryManager.getRepository("test").getConnection()) {
+			return QueryResults.asModel(connection.getStatements(null, null, null));
+		} finally {
+			repositoryManager.shutDown();
+		}
+	}
+
+	/**
+	 * Lets the repository refuse to add statements with the invalid predicate.
+	 */
+	private void rejectInvalidStatements() {
+		wrapConnection = connection -> new RepositoryConnectionWrapper(repository, connection) {
+			@Override
+			public void add(Iterable<? extends Statement> statements, Resource... contexts) {
+				for (Statement statement : statements) {
+					if (statement.getPredicate().equals(Invalid))
+						throw new RepositoryException("Invalid statement " + statement);
+				}
+				super.add(statements, contexts);
+			}
+		};
+	}
+
+	private void useContentHashIndex() {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.CONTENT_HASH_INDEX_FILE, dataDirectory.resolve("content-hashes").toString());
+	}
+
+	private void useWrittenSubjectsFilter() {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.WRITTEN_SUBJECTS_FILTER_FILE, dataDirectory.resolve("written-subjects").toString());
+	}
+
+	private static Model parse(String nquads) throws IOException {
+		return Rio.parse(new StringReader(nquads), "", RDFFormat.NQUADS);
+	}
+
+	/**
+	 * Assert that a new version replaces the previous one, including its nested blank nodes,
+	 * and leaves the blank nodes of other entities alone.
+	 */
+	private void assertReplacesPreviousVersion() throws IOException {
+		Model expected = parse(OtherEntity);
+		expected.addAll(parse(SecondVersion));
+
+		Model result = writeVersions(OtherEntity, FirstVersion, SecondVersion);
+
+		testRunner.assertAllFlowFilesTransferred(RDF4JRepositoryMaterialisation.REL_SUCCESS, 3);
+		// Compare the triples, the graph they are stored in depends on the delete strategy.
+		Model triples = new LinkedHashModel();
+		result.forEach(statement -> triples.add(statement.getSubject(), statement.getPredicate(), statement.getObject()));
+		assertTrue(Models.isomorphic(expected, triples));
+	}
+
+	@Test
+	public void testReplacesPreviousVersionInMemoryStore() throws IOException {
+		useEmbeddedRepository(RDF4JRepositoryMaterialisation.STORAGE_MEMORY);
+		assertReplacesPreviousVersion();
+	}
+
+	@Test
+	public void testReplacesPreviousVersionInNativeStore() throws IOException {
+		useEmbeddedRepository(RDF4JRepositoryMaterialisation.STORAGE_NATIVE);
+		assertReplacesPreviousVersion();
+	}
+
+	@Test
+	public void testBulkDeleteRemovesNestedBlankNodes() throws IOException {
+		try (RepositoryConnection connection = repository.getConnection()) {
+			connection.add(parse(OtherEntity));
+			connection.add(parse(FirstVersion));
+
+			RDF4JRepositoryMaterialisation.bulkDeleteEntitiesFromRepo(Set.of(vf.createIRI("http://example.org/entity")), 5, connection);
+
+			// The blank nodes of the other entity are left alone, even though the entity refers to it.
+			assertTrue(Models.isomorphic(parse(OtherEntity), QueryResults.asModel(connection.getStatements(null, null, null))));
+		}
+	}
+
+	@Test
+	public void testBulkUpdateDeleteStrategy() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.DELETE_STRATEGY, RDF4JRepositoryMaterialisation.DELETE_BULK_UPDATE.getValue());
+		assertReplacesPreviousVersion();
+		assertTrue(testRunner.getLogger().getWarnMessages().isEmpty());
+	}
+
+	@Test
+	public void testWarnsAboutBlankNodesBeyondDepth() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.DELETE_STRATEGY, RDF4JRepositoryMaterialisation.DELETE_BULK_UPDATE.getValue());
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.BLANK_NODE_DEPTH, "1");
+		assertEquals(2, RDF4JRepositoryMaterialisation.getBlankNodeDepth(parse(FirstVersion)));
+
+		Model result = writeVersions(FirstVersion, SecondVersion);
+
+		testRunner.assertAllFlowFilesTransferred(RDF4JRepositoryMaterialisation.REL_SUCCESS, 2);
+		assertEquals(1, testRunner.getLogger().getWarnMessages().size());
+		// The street nested in the address of the first version is left behind.
+		assertEquals(1, result.filter(null, null, vf.createLiteral("Old street")).size());
+		assertEquals(1, result.filter(vf.createIRI("http://example.org/entity"), vf.createIRI("http://example.org/name"), null).size());
+	}
+
+	@Test
+	public void testDiffDeleteStrategy() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.DELETE_STRATEGY, RDF4JRepositoryMaterialisation.DELETE_DIFF.getValue());
+		assertReplacesPreviousVersion();
+	}
+
+	@Test
+	public void testPassThroughUploadMode() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.UPLOAD_MODE, RDF4JRepositoryMaterialisation.UPLOAD_PASS_THROUGH.getValue());
+		assertReplacesPreviousVersion();
+	}
+
+	@Test
+	public void testGraphPerEntityDeleteStrategy() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.DELETE_STRATEGY, RDF4JRepositoryMaterialisation.DELETE_GRAPH_PER_ENTITY.getValue());
+		assertReplacesPreviousVersion();
+
+		Model result = writeVersions();
+		assertEquals(3, result.filter(null, null, null, vf.createIRI("http://example.org/entity")).size());
+	}
+
+	@Test
+	public void testIsolatesFailingFlowFiles() {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.ISOLATE_FAILURES, "true");
+		testRunner.enqueue(FirstVersion);
+		testRunner.enqueue("This is not N-Quads");
+		testRunner.enqueue(OtherEntity);
+		testRunner.run();
+
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_SUCCESS, 2);
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_FAILURE, 1);
+		testRunner.getFlowFilesForRelationship(RDF4JRepositoryMaterialisation.REL_FAILURE).get(0)
+				.assertContentEquals("This is not N-Quads");
+	}
+
+	@Test
+	public void testPartitionsFlowFilesSharingAnEntity() {
+		List<Set<Resource>> batchEntityIds = List.of(
+				Set.of(vf.createIRI("http://example.org/a")),
+				Set.of(vf.createIRI("http://example.org/b")),
+				Set.of(vf.createIRI("http://example.org/c"), vf.createIRI("http://example.org/a")),
+				Set.of(vf.createIRI("http://example.org/c")));
+
+		List<List<Integer>> partitions = RDF4JRepositoryMaterialisation.partitionByEntity(batchEntityIds, 2);
+
+		// The FlowFiles about a and c are joined through the third one, and keep their order.
+		// The hashes of a and b differ by one, so b ends up in the other partition.
+		assertEquals(List.of(List.of(0, 2, 3), List.of(1)),
+				partitions.get(0).contains(0) ? partitions : List.of(partitions.get(1), partitions.get(0)));
+	}
+
+	@Test
+	public void testParallelWritersApplyVersionsInOrder() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.PARALLEL_WRITERS, "4");
+		Model expected = parse(OtherEntity);
+		expected.addAll(parse(SecondVersion));
+
+		testRunner.enqueue(FirstVersion);
+		testRunner.enqueue(OtherEntity);
+		testRunner.enqueue(SecondVersion);
+		testRunner.run();
+		Model result = writeVersions();
+
+		testRunner.assertAllFlowFilesTransferred(RDF4JRepositoryMaterialisation.REL_SUCCESS, 3);
+		assertTrue(Models.isomorphic(expected, result));
+	}
+
+	@Test
+	public void testWritesPartitionsConcurrently() {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.PARALLEL_WRITERS, "2");
+		// A transaction only goes ahead once the transaction of the other partition has begun as well.
+		// The memory store serialises the writes themselves.
+		CountDownLatch transactions = new CountDownLatch(2);
+		wrapConnection = connection -> new RepositoryConnectionWrapper(repository, connection) {
+			@Override
+			public void begin() {
+				super.begin();
+				transactions.countDown();
+				try {
+					if (!transactions.await(10, TimeUnit.SECONDS))
+						throw new RepositoryException("The other partition wasn't written concurrently");
+				} catch (InterruptedException e) {
+					throw new RepositoryException(e);
+				}
+			}
+		};
+
+		// The hashes of these IRIs differ by one, so they end up in different partitions.
+		testRunner.enqueue("<http://example.org/a> <http://example.org/name> \"A\" .");
+		testRunner.enqueue("<http://example.org/b> <http://example.org/name> \"B\" .");
+		testRunner.run();
+
+		testRunner.assertAllFlowFilesTransferred(RDF4JRepositoryMaterialisation.REL_SUCCESS, 2);
+		assertEquals(0, transactions.getCount());
+	}
+
+	@Test
+	public void testRollsBackBatchWhenParallelPartitionFails() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.PARALLEL_WRITERS, "2");
+		rejectInvalidStatements();
+
+		// The hashes of these IRIs differ by one, so they end up in different partitions, of which one fails.
+		testRunner.enqueue("<http://example.org/a> <http://example.org/name> \"A\" .");
+		testRunner.enqueue("<http://example.org/b> <http://example.org/invalid> \"Rejected\" .");
+		assertThrows(AssertionError.class, () -> testRunner.run());
+
+		// Without isolating failures, the whole batch is retried instead of being routed to failure.
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_SUCCESS, 0);
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_FAILURE, 0);
+		assertEquals(2, testRunner.getQueueSize().getObjectCount());
+	}
+
+	@Test
+	public void testSkipsUnchangedEntities() throws IOException {
+		useContentHashIndex();
+		writeVersions(OtherEntity, FirstVersion);
+		// Change the stored entity behind the back of the processor, to see whether it is written again.
+		try (RepositoryConnection connection = repository.getConnection()) {
+			connection.remove(vf.createIRI("http://example.org/entity"), vf.createIRI("http://example.org/name"), null);
+		}
+
+		Model result = writeVersions(FirstVersion);
+
+		testRunner.assertAllFlowFilesTransferred(RDF4JRepositoryMaterialisation.REL_SUCCESS, 3);
+		assertEquals(1, testRunner.getCounterValue("Unchanged entities"));
+		assertTrue(result.filter(vf.createIRI("http://example.org/entity"), vf.createIRI("http://example.org/name"), null).isEmpty());
+	}
+
+	@Test
+	public void testRewritesChangedEntities() throws IOException {
+		useContentHashIndex();
+		assertReplacesPreviousVersion();
+		assertEquals(0, testRunner.getCounterValue("Unchanged entities"));
+	}
+
+	@Test
+	public void testSkipsUnchangedEntitiesWithinBatch() throws IOException {
+		useContentHashIndex();
+		Model expected = parse(OtherEntity);
+		expected.addAll(parse(FirstVersion));
+
+		// The repeated first version is skipped, the first version after the second one is written again.
+		testRunner.enqueue(OtherEntity);
+		testRunner.enqueue(FirstVersion);
+		testRunner.enqueue(FirstVersion);
+		testRunner.enqueue(SecondVersion);
+		testRunner.enqueue(FirstVersion);
+		testRunner.run();
+		Model result = writeVersions();
+
+		testRunner.assertAllFlowFilesTransferred(RDF4JRepositoryMaterialisation.REL_SUCCESS, 5);
+		assertEquals(1, testRunner.getCounterValue("Unchanged entities"));
+		assertTrue(Models.isomorphic(expected, result));
+	}
+
+	@Test
+	public void testSkipsDeleteForNewEntities() throws IOException {
+		useWrittenSubjectsFilter();
+		assertReplacesPreviousVersion();
+		assertEquals(2, testRunner.getCounterValue("New entities"));
+		// The filter was saved and loaded between the runs, so the entity was not new for the last version.
+		assertTrue(Files.exists(dataDirectory.resolve("written-subjects")));
+
+		// An entity added behind the back of the processor is not in the filter, so it is not deleted.
+		try (RepositoryConnection connection = repository.getConnection()) {
+			connection.add(parse("<http://example.org/unknown> <http://example.org/name> \"Stored\" ."));
+		}
+		Model result = writeVersions("<http://example.org/unknown> <http://example.org/name> \"Written\" .");
+
+		assertEquals(3, testRunner.getCounterValue("New entities"));
+		assertEquals(2, result.filter(vf.createIRI("http://example.org/unknown"), null, null).size());
+	}
+
+	@Test
+	public void testRebuildsWrittenSubjectsFilterFromRepository() throws IOException {
+		try (RepositoryConnection connection = repository.getConnection()) {
+			connection.add(parse(FirstVersion));
+		}
+		useWrittenSubjectsFilter();
+
+		Model result = writeVersions(SecondVersion);
+
+		assertEquals(0, testRunner.getCounterValue("New entities"));
+		assertTrue(Models.isomorphic(parse(SecondVersion), result));
+	}
+
+	@Test
+	public void testKeepsCommittedBatchesWhenLaterBatchFails() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.MAX_BATCH_SIZE, "1");
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.BATCHES_PER_TRIGGER, "3");
+		testRunner.enqueue(FirstVersion);
+		testRunner.enqueue("This is not N-Quads");
+		testRunner.enqueue(OtherEntity);
+
+		// The first batch is still being written while the second one fails to parse.
+		assertThrows(AssertionError.class, () -> testRunner.run());
+
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_SUCCESS, 1);
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_FAILURE, 0);
+		testRunner.assertQueueNotEmpty();
+		assertEquals(2, testRunner.getQueueSize().getObjectCount());
+		assertTrue(Models.isomorphic(parse(FirstVersion), writeVersions()));
+	}
+
+	@Test
+	public void testWritesUnchangedEntitiesAgainWhenEarlierFlowFileFails() throws IOException {
+		useContentHashIndex();
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.ISOLATE_FAILURES, "true");
+		writeVersions(FirstVersion);
+		rejectInvalidStatements();
+
+		// The second FlowFile has the same version of the entity as the first one, which fails because of another entity.
+		testRunner.enqueue(SecondVersion + "<http://example.org/broken> <http://example.org/invalid> \"Rejected\" .\n");
+		testRunner.enqueue(SecondVersion);
+		testRunner.run();
+		Model result = writeVersions();
+
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_SUCCESS, 2);
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_FAILURE, 1);
+		assertTrue(Models.isomorphic(parse(SecondVersion), result));
+	}
+
+	@Test
+	public void testIsolatesSingleFlowFileThatCantBeWritten() {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.ISOLATE_FAILURES, "true");
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.MAX_BATCH_SIZE, "1");
+		rejectInvalidStatements();
+
+		testRunner.enqueue("<http://example.org/broken> <http://example.org/invalid> \"Rejected\" .");
+		testRunner.run();
+
+		testRunner.assertAllFlowFilesTransferred(RDF4JRepositoryMaterialisation.REL_FAILURE, 1);
+	}
+
+	@Test
+	public void testRetriesSingleFlowFileWhenRepositoryIsUnavailable() throws IOException {
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.ISOLATE_FAILURES, "true");
+		testRunner.setProperty(RDF4JRepositoryMaterialisation.MAX_BATCH_SIZE, "1");
+		wrapConnection = connection -> {
+			connection.close();
+			throw new RepositoryException("The repository is down");
+		};
+
+		testRunner.enqueue(FirstVersion);
+		assertThrows(AssertionError.class, () -> testRunner.run());
+
+		testRunner.assertTransferCount(RDF4JRepositoryMaterialisation.REL_FAILURE, 0);
+		assertEquals(1, testRunner.getQueueSize().getObjectCount());
+
+		// Once the repository is back, the FlowFile is written.
+		wrapConnection = connection -> connection;
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(RDF4JRepositoryMaterialisation.REL_SUCCESS, 1);
+		assertTrue(Models.isomorphic(parse(FirstVersion), writeVersions()));
+	}
+}
@@ -0,0 +1,103 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.base.RepositoryConnectionWrapper;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StandardRDF4JRepositoryConnectionServiceTest {
+
+	private Repository repository;
+
+	private TestRunner testRunner;
+
+	private StandardRDF4JRepositoryConnectionService connectionService;
+
+	@BeforeEach
+	public void init() throws InitializationException {
+		repository = new SailRepository(new MemoryStore());
+		connectionService = new StandardRDF4JRepositoryConnectionService() {
+			@Override
+			Repository getRepository() {
+				return repository;
+			}
+		};
+		testRunner = TestRunners.newTestRunner(RDF4JRepositoryMaterialisation.class);
+		testRunner.addControllerService("connections", connectionService);
+		testRunner.setProperty(connectionService, StandardRDF4JRepositoryConnectionService.REPOSITORY_ID, "test");
+		testRunner.setProperty(connectionService, StandardRDF4JRepositoryConnectionService.MAX_CONNECTIONS, "1");
+		testRunner.setProperty(connectionService, StandardRDF4JRepositoryConnectionService.MAX_WAIT_TIME, "100 ms");
+		testRunner.enableControllerService(connectionService);
+	}
+
+	@AfterEach
+	public void shutDown() {
+		if (testRunner.isControllerServiceEnabled(connectionService))
+			testRunner.disableControllerService(connectionService);
+		repository.shutDown();
+	}
+
+	private static RepositoryConnection getDelegate(RepositoryConnection connection) {
+		return ((RepositoryConnectionWrapper) connection).getDelegate();
+	}
+
+	@Test
+	public void testReusesReturnedConnection() {
+		RepositoryConnection connection = connectionService.getConnection();
+		RepositoryConnection delegate = getDelegate(connection);
+		connection.close();
+
+		try (RepositoryConnection reused = connectionService.getConnection()) {
+			assertSame(delegate, getDelegate(reused));
+			assertTrue(delegate.isOpen());
+		}
+	}
+
+	@Test
+	public void testClosingReleasesPermit() {
+		RepositoryConnection connection = connectionService.getConnection();
+		assertThrows(ProcessException.class, connectionService::getConnection);
+
+		connection.close();
+		// Closing twice doesn't release a second permit.
+		connection.close();
+		RepositoryConnection next = connectionService.getConnection();
+		assertThrows(ProcessException.class, connectionService::getConnection);
+		next.close();
+	}
+
+	@Test
+	public void testRollsBackReturnedConnection() {
+		RepositoryConnection connection = connectionService.getConnection();
+		connection.begin();
+		connection.add(RDF4JRepositoryMaterialisationTest.vf.createIRI("http://example.org/entity"),
+				RDF4JRepositoryMaterialisationTest.vf.createIRI("http://example.org/name"),
+				RDF4JRepositoryMaterialisationTest.vf.createLiteral("Uncommitted"));
+		connection.close();
+
+		try (RepositoryConnection reused = connectionService.getConnection()) {
+			assertFalse(reused.isActive());
+			assertTrue(reused.isEmpty());
+		}
+	}
+
+	@Test
+	public void testDisablingClosesIdleConnections() {
+		RepositoryConnection connection = connectionService.getConnection();
+		RepositoryConnection delegate = getDelegate(connection);
+		connection.close();
+
+		testRunner.disableControllerService(connectionService);
+		assertFalse(delegate.isOpen());
+	}
+}
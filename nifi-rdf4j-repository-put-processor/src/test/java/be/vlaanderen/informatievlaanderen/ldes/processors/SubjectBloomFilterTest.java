@@ -0,0 +1,50 @@
+package be.vlaanderen.informatievlaanderen.ldes.processors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubjectBloomFilterTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void testContainsAddedSubjects() {
+		SubjectBloomFilter filter = new SubjectBloomFilter(1000);
+		for (int i = 0; i < 1000; i++)
+			filter.put("http://example.org/entity/" + i);
+
+		for (int i = 0; i < 1000; i++)
+			assertTrue(filter.mightContain("http://example.org/entity/" + i));
+		int falsePositives = 0;
+		for (int i = 1000; i < 11000; i++) {
+			if (filter.mightContain("http://example.org/entity/" + i))
+				falsePositives++;
+		}
+		assertTrue(falsePositives < 300, falsePositives + " false positives");
+	}
+
+	@Test
+	public void testSavesAndLoads() throws IOException {
+		Path file = directory.resolve("subjects");
+		SubjectBloomFilter filter = new SubjectBloomFilter(1000);
+		filter.put("http://example.org/entity");
+		filter.save(file);
+
+		SubjectBloomFilter loaded = SubjectBloomFilter.load(file);
+
+		assertTrue(loaded.mightContain("http://example.org/entity"));
+		assertFalse(loaded.mightContain("http://example.org/other"));
+		assertTrue(loaded.hasCapacity(1000));
+		assertFalse(loaded.hasCapacity(2000));
+		// The file is removed, so a crash before the next save doesn't leave a filter that misses subjects.
+		assertFalse(Files.exists(file));
+		assertNull(SubjectBloomFilter.load(file));
+	}
+}
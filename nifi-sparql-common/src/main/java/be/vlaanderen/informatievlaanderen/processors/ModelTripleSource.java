@@ -0,0 +1,70 @@
+package be.vlaanderen.informatievlaanderen.processors;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.model.*;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.QueryRoot;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.evaluation.TripleSource;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.StrictEvaluationStrategy;
+import org.eclipse.rdf4j.query.impl.EmptyBindingSet;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+
+import java.util.stream.Stream;
+
+/**
+ * Lets a query be evaluated directly over a model, which is already indexed, instead of copying it into a store first.
+ * Like a memory store without a dataset, patterns outside a GRAPH clause match the statements of all graphs.
+ * A read-only reference model can be added, of which the statements are matched as if they were in the model.
+ */
+public class ModelTripleSource implements TripleSource {
+    private final Model model;
+    private final Model reference;
+
+    public ModelTripleSource(Model model) {
+        this(model, null);
+    }
+
+    /**
+     * @param model The model.
+     * @param reference The reference model, or null.
+     */
+    public ModelTripleSource(Model model, Model reference) {
+        this.model = model;
+        this.reference = reference;
+    }
+
+    @Override
+    public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(Resource subject, IRI predicate, Value object, Resource... contexts) {
+        if (reference == null)
+            return new CloseableIteratorIteration<>(model.getStatements(subject, predicate, object, contexts).iterator());
+        // Statements that are in both models are only matched once, like in a union of the two.
+        Stream<Statement> statements = Stream.concat(
+                model.filter(subject, predicate, object, contexts).stream(),
+                reference.filter(subject, predicate, object, contexts).stream().filter(statement -> !model.contains(statement)));
+        return new CloseableIteratorIteration<>(statements.iterator());
+    }
+
+    @Override
+    public ValueFactory getValueFactory() {
+        return SimpleValueFactory.getInstance();
+    }
+
+    /**
+     * Evaluates a parsed query over the model.
+     *
+     * @param query The parsed query, which is not modified, so it can be shared between threads.
+     * @return The solutions of the query.
+     */
+    public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(ParsedQuery query) {
+        EvaluationStrategy strategy = new StrictEvaluationStrategy(this, null);
+        TupleExpr tupleExpr = new QueryRoot(query.getTupleExpr().clone());
+        tupleExpr = strategy.optimize(tupleExpr, new EvaluationStatistics(), EmptyBindingSet.getInstance());
+        return strategy.evaluate(tupleExpr, EmptyBindingSet.getInstance());
+    }
+}
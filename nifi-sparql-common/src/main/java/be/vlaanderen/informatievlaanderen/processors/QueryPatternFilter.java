@@ -0,0 +1,124 @@
+package be.vlaanderen.informatievlaanderen.processors;
+
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.query.algebra.ArbitraryLengthPath;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.TripleRef;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.ZeroLengthPath;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Discards the statements that can't match any triple pattern of a query, based on the constant predicates of the
+ * patterns and the constant classes of the rdf:type patterns.
+ */
+public class QueryPatternFilter {
+    private final Set<Value> predicates;
+    private final Set<Value> types;
+
+    private QueryPatternFilter(Set<Value> predicates, Set<Value> types) {
+        this.predicates = predicates;
+        this.types = types;
+    }
+
+    /**
+     * Analyses the triple patterns of a query.
+     *
+     * @param query The parsed query.
+     * @return The filter, or null if the query can match statements with any predicate.
+     */
+    public static QueryPatternFilter forQuery(ParsedQuery query) {
+        PatternCollector collector = new PatternCollector();
+        query.getTupleExpr().visit(collector);
+        if (collector.anyPredicate)
+            return null;
+        return new QueryPatternFilter(collector.predicates, collector.anyType ? null : collector.types);
+    }
+
+    /**
+     * @param statement A statement.
+     * @return False if the statement can't match any triple pattern of the query.
+     */
+    public boolean accepts(Statement statement) {
+        if (!predicates.contains(statement.getPredicate()))
+            return false;
+        return types == null || !statement.getPredicate().equals(RDF.TYPE) || types.contains(statement.getObject());
+    }
+
+    /**
+     * Parses N-Quads, only keeping the statements that can match a triple pattern of the query.
+     *
+     * @param in The N-Quads.
+     * @return The kept statements.
+     */
+    public Model parse(InputStream in) throws IOException {
+        Model model = new LinkedHashModel();
+        RDFParser parser = Rio.createParser(RDFFormat.NQUADS);
+        parser.setRDFHandler(new AbstractRDFHandler() {
+            @Override
+            public void handleStatement(Statement statement) {
+                if (accepts(statement))
+                    model.add(statement);
+            }
+        });
+        parser.parse(in);
+        return model;
+    }
+
+    private static class PatternCollector extends AbstractQueryModelVisitor<RuntimeException> {
+        private final Set<Value> predicates = new HashSet<>();
+        private final Set<Value> types = new HashSet<>();
+        private boolean anyPredicate = false;
+        private boolean anyType = false;
+
+        @Override
+        public void meet(StatementPattern node) {
+            Var predicate = node.getPredicateVar();
+            if (!predicate.hasValue()) {
+                anyPredicate = true;
+                return;
+            }
+            predicates.add(predicate.getValue());
+            if (predicate.getValue().equals(RDF.TYPE)) {
+                Var object = node.getObjectVar();
+                if (object.hasValue())
+                    types.add(object.getValue());
+                else
+                    anyType = true;
+            }
+        }
+
+        // A zero length path matches every term of the graph, and RDF-star patterns look into quoted triples.
+        @Override
+        public void meet(ArbitraryLengthPath node) {
+            if (node.getMinLength() == 0)
+                anyPredicate = true;
+            else
+                super.meet(node);
+        }
+
+        @Override
+        public void meet(ZeroLengthPath node) {
+            anyPredicate = true;
+        }
+
+        @Override
+        public void meet(TripleRef node) {
+            anyPredicate = true;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package be.vlaanderen.informatievlaanderen.processors;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An RDF file, such as a code list or an ontology, that is kept indexed in memory and loaded again when it changes.
+ * The format is derived from the file name, N-Quads by default.
+ * The file is checked for changes at most once per check interval, until then the loaded contents are handed out
+ * without taking a lock or touching the file system.
+ */
+public class ReferenceGraph {
+    private final Path file;
+    private final IRI graphName;
+    private final long checkIntervalNanos;
+    private final ComponentLog logger;
+
+    private FileTime loadedModificationTime;
+    private volatile Model model;
+    private volatile long nextCheck;
+
+    /**
+     * @param file The RDF file.
+     * @param graphName The named graph to put the statements in, or null to keep their own graph.
+     * @param checkInterval The minimum time between two checks of the file for changes, in milliseconds.
+     * @param logger The logger to report failed reloads to.
+     */
+    public ReferenceGraph(Path file, IRI graphName, long checkInterval, ComponentLog logger) {
+        this.file = file;
+        this.graphName = graphName;
+        this.checkIntervalNanos = TimeUnit.MILLISECONDS.toNanos(checkInterval);
+        this.logger = logger;
+    }
+
+    /**
+     * Loads the file again if it was modified since it was last loaded, once the check interval has passed. When it
+     * can't be loaded again, the previous contents are kept until the file is modified again.
+     *
+     * @return The read-only contents of the file.
+     */
+    public Model get() throws IOException {
+        Model current = model;
+        if (current != null && System.nanoTime() - nextCheck < 0)
+            return current;
+        synchronized (this) {
+            // Another thread may have checked the file while this one was waiting for the lock.
+            if (model != null && System.nanoTime() - nextCheck < 0)
+                return model;
+            FileTime modificationTime = Files.getLastModifiedTime(file);
+            nextCheck = System.nanoTime() + checkIntervalNanos;
+            if (model != null && modificationTime.equals(loadedModificationTime))
+                return model;
+            try {
+                model = load();
+            }
+            catch (Exception e) {
+                if (model == null)
+                    throw e;
+                logger.error("Failed to reload reference graph {}, keeping the previous contents", file, e);
+            }
+            loadedModificationTime = modificationTime;
+            return model;
+        }
+    }
+
+    private Model load() throws IOException {
+        RDFFormat format = Rio.getParserFormatForFileName(file.toString()).orElse(RDFFormat.NQUADS);
+        Model loaded;
+        try (InputStream in = Files.newInputStream(file)) {
+            loaded = Rio.parse(in, file.toUri().toString(), format);
+        }
+        if (graphName != null) {
+            Model named = new LinkedHashModel();
+            loaded.forEach(statement -> named.add(statement.getSubject(), statement.getPredicate(), statement.getObject(), graphName));
+            loaded = named;
+        }
+        return loaded.unmodifiable();
+    }
+}
@@ -0,0 +1,116 @@
+package be.vlaanderen.informatievlaanderen.processors;
+
+import org.eclipse.rdf4j.model.*;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.model.vocabulary.RDFS;
+
+import java.util.*;
+
+/**
+ * The RDFS closure of a schema, computed once, against which the statements of many small graphs are entailed.
+ * The subclass, subproperty, domain and range rules are applied in a single pass over a graph, as the closure already
+ * holds every superclass, superproperty, domain and range they can lead to. Statements in the graph don't extend the
+ * schema, and the axiomatic triples and the rdfs:Resource types are left out.
+ */
+public class RdfsSchema {
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    private final Map<Value, Set<Value>> superClasses;
+    private final Map<Value, Set<Value>> superProperties;
+    private final Map<Value, Set<Value>> domainClasses = new HashMap<>();
+    private final Map<Value, Set<Value>> rangeClasses = new HashMap<>();
+
+    /**
+     * Computes the closure of a schema.
+     *
+     * @param schema The rdfs:subClassOf, rdfs:subPropertyOf, rdfs:domain and rdfs:range statements of the schema.
+     */
+    public RdfsSchema(Model schema) {
+        superClasses = transitiveClosure(schema.filter(null, RDFS.SUBCLASSOF, null));
+        superProperties = transitiveClosure(schema.filter(null, RDFS.SUBPROPERTYOF, null));
+        closeClasses(schema.filter(null, RDFS.DOMAIN, null), domainClasses);
+        closeClasses(schema.filter(null, RDFS.RANGE, null), rangeClasses);
+    }
+
+    /**
+     * Adds the statements entailed by the schema to a graph, in the graph of the statement they are entailed from.
+     *
+     * @param graph The graph.
+     */
+    public void entail(Model graph) {
+        List<Statement> entailed = new ArrayList<>();
+        for (Statement statement : graph) {
+            Resource subject = statement.getSubject();
+            IRI predicate = statement.getPredicate();
+            Value object = statement.getObject();
+            Resource context = statement.getContext();
+            boolean isType = predicate.equals(RDF.TYPE);
+            for (Value superProperty : superProperties.getOrDefault(predicate, Collections.emptySet())) {
+                if (!superProperty.isIRI())
+                    continue;
+                entailed.add(vf.createStatement(subject, (IRI) superProperty, object, context));
+                isType |= superProperty.equals(RDF.TYPE);
+            }
+            for (Value type : domainClasses.getOrDefault(predicate, Collections.emptySet()))
+                entailed.add(vf.createStatement(subject, RDF.TYPE, type, context));
+            if (object.isResource()) {
+                for (Value type : rangeClasses.getOrDefault(predicate, Collections.emptySet()))
+                    entailed.add(vf.createStatement((Resource) object, RDF.TYPE, type, context));
+                if (isType) {
+                    for (Value type : superClasses.getOrDefault(object, Collections.emptySet()))
+                        entailed.add(vf.createStatement(subject, RDF.TYPE, type, context));
+                }
+            }
+        }
+        graph.addAll(entailed);
+    }
+
+    /**
+     * @param edges The statements of a transitive property.
+     * @return For every subject, all objects it reaches, except for itself.
+     */
+    private static Map<Value, Set<Value>> transitiveClosure(Model edges) {
+        Map<Value, Set<Value>> direct = new HashMap<>();
+        for (Statement edge : edges) {
+            if (edge.getObject().isResource())
+                direct.computeIfAbsent(edge.getSubject(), subject -> new HashSet<>()).add(edge.getObject());
+        }
+        Map<Value, Set<Value>> closure = new HashMap<>();
+        for (Value start : direct.keySet()) {
+            Set<Value> reached = new HashSet<>();
+            Deque<Value> toVisit = new ArrayDeque<>(direct.get(start));
+            while (!toVisit.isEmpty()) {
+                Value next = toVisit.pop();
+                if (reached.add(next))
+                    toVisit.addAll(direct.getOrDefault(next, Collections.emptySet()));
+            }
+            reached.remove(start);
+            closure.put(start, reached);
+        }
+        return closure;
+    }
+
+    /**
+     * Collects the domain or range classes of every property, including the ones of its superproperties and their
+     * superclasses.
+     */
+    private void closeClasses(Model declarations, Map<Value, Set<Value>> classes) {
+        Map<Value, Set<Value>> declared = new HashMap<>();
+        for (Statement declaration : declarations) {
+            if (declaration.getObject().isResource())
+                declared.computeIfAbsent(declaration.getSubject(), property -> new HashSet<>()).add(declaration.getObject());
+        }
+        Set<Value> properties = new HashSet<>(declared.keySet());
+        properties.addAll(superProperties.keySet());
+        for (Value property : properties) {
+            Set<Value> propertyClasses = new HashSet<>(declared.getOrDefault(property, Collections.emptySet()));
+            for (Value superProperty : superProperties.getOrDefault(property, Collections.emptySet()))
+                propertyClasses.addAll(declared.getOrDefault(superProperty, Collections.emptySet()));
+            for (Value propertyClass : new ArrayList<>(propertyClasses))
+                propertyClasses.addAll(superClasses.getOrDefault(propertyClass, Collections.emptySet()));
+            if (!propertyClasses.isEmpty())
+                classes.put(property, propertyClasses);
+        }
+    }
+}
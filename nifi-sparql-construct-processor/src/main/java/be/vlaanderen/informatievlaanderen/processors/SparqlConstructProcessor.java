@@ -16,8 +16,14 @@
  */
 package be.vlaanderen.informatievlaanderen.processors;
 
+import org.apache.nifi.annotation.behavior.DynamicProperties;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
@@ -28,26 +34,54 @@ import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
 import org.eclipse.rdf4j.model.*;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.GraphQuery;
-import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.query.MalformedQueryException;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.Update;
+import org.eclipse.rdf4j.query.parser.ParsedGraphQuery;
+import org.eclipse.rdf4j.query.parser.ParsedOperation;
+import org.eclipse.rdf4j.query.parser.ParsedUpdate;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.repository.sail.SailRepositoryConnection;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFHandler;
 import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.StatementCollector;
 import org.eclipse.rdf4j.sail.memory.MemoryStore;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 
 @Tags({"ldes, vsds, SPARQL"})
 @CapabilityDescription("SPARQL construct manipulation of an RDF flowfile.")
+@DynamicProperties({
+        @DynamicProperty(
+                name = "step.N",
+                value = "A SPARQL CONSTRUCT or UPDATE query",
+                description = "A transformation step that is run after the SPARQL query, and after the steps with a lower N."),
+        @DynamicProperty(
+                name = "step.N.mode",
+                value = "infer or replace",
+                description = "Whether the result of the CONSTRUCT query of step N is added to the graph, or replaces it. Defaults to replace.")
+})
 public class SparqlConstructProcessor extends AbstractProcessor {
 
     public static final ValueFactory vf = SimpleValueFactory.getInstance();
@@ -78,6 +112,60 @@ public class SparqlConstructProcessor extends AbstractProcessor {
             .defaultValue(REPLACE_ALL.getValue())
             .build();
 
+    public static final AllowableValue EVALUATE_MODEL = new AllowableValue(
+            "model",
+            "Model",
+            "The query is evaluated directly over the parsed contents of the flowfile."
+    );
+    public static final AllowableValue EVALUATE_MEMORY_STORE = new AllowableValue(
+            "memory store",
+            "Memory store",
+            "The contents of the flowfile are loaded into an in-memory store, against which the query is evaluated."
+    );
+    public static final PropertyDescriptor QUERY_EVALUATION = new PropertyDescriptor
+            .Builder().name("QUERY_EVALUATION")
+            .displayName("Query evaluation")
+            .required(true)
+            .allowableValues(EVALUATE_MODEL, EVALUATE_MEMORY_STORE)
+            .defaultValue(EVALUATE_MEMORY_STORE.getValue())
+            .build();
+
+    public static final PropertyDescriptor REFERENCE_GRAPH_FILE = new PropertyDescriptor
+            .Builder().name("REFERENCE_GRAPH_FILE")
+            .displayName("Reference graph file")
+            .description("An RDF file, such as a code list or an ontology, that the queries can read as if its statements were in every flowfile. "
+                    + "It is kept in memory, loaded again when it changes, and its statements are not part of the result, unless the flowfile contained them.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor REFERENCE_GRAPH_NAME = new PropertyDescriptor
+            .Builder().name("REFERENCE_GRAPH_NAME")
+            .displayName("Reference graph name")
+            .description("The named graph to put the statements of the reference graph file in. By default, they keep their own graph.")
+            .required(false)
+            .addValidator(StandardValidators.URI_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor REFERENCE_GRAPH_CHECK_INTERVAL = new PropertyDescriptor
+            .Builder().name("REFERENCE_GRAPH_CHECK_INTERVAL")
+            .displayName("Reference graph check interval")
+            .description("How often the reference graph file and the RDFS schema file are checked for changes. In between, "
+                    + "the contents loaded before are used without touching the file system.")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RDFS_SCHEMA_FILE = new PropertyDescriptor
+            .Builder().name("RDFS_SCHEMA_FILE")
+            .displayName("RDFS schema file")
+            .description("An RDF file with an RDFS schema. The contents of every flowfile are extended with what they entail "
+                    + "under the schema before the queries are run. The closure of the schema is computed once, and again when the file changes.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
     public static final Relationship SUCCESS = new Relationship.Builder()
             .name("SUCCESS")
             .description("Success relationship")
@@ -92,11 +180,54 @@ public class SparqlConstructProcessor extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    private static final Pattern STEP_QUERY = Pattern.compile("step\\.(\\d+)");
+
+    private static final Pattern STEP_MODE = Pattern.compile("step\\.(\\d+)\\.mode");
+
+    /**
+     * The SPARQL query and the steps, parsed once when the processor is scheduled. Null if one of them isn't valid.
+     */
+    private volatile List<Step> steps;
+
+    /**
+     * Discards the statements the SPARQL query can't match while parsing. Null in infer mode, where the contents of
+     * the flowfile are passed through, with an RDFS schema, or if the query can match any statement.
+     */
+    private volatile QueryPatternFilter patternFilter;
+
+    /**
+     * The reference graph the queries can read, or null.
+     */
+    private volatile ReferenceGraph referenceGraph;
+
+    /**
+     * The file of the RDFS schema the flowfiles are entailed against, or null.
+     */
+    private volatile ReferenceGraph schemaGraph;
+
+    /**
+     * The closure of the RDFS schema, and the contents of the schema file it was computed from.
+     */
+    private RdfsSchema rdfsSchema;
+
+    private Model rdfsSchemaModel;
+
+    /**
+     * Initialised in-memory stores, which only hold the reference graph in between FlowFiles. There are never more
+     * stores than concurrent tasks.
+     */
+    private final Queue<PooledStore> memoryStores = new ConcurrentLinkedQueue<>();
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         descriptors = new ArrayList<>();
         descriptors.add(SPARQL_QUERY);
         descriptors.add(INFERENCE_MODE);
+        descriptors.add(QUERY_EVALUATION);
+        descriptors.add(REFERENCE_GRAPH_FILE);
+        descriptors.add(REFERENCE_GRAPH_NAME);
+        descriptors.add(RDFS_SCHEMA_FILE);
+        descriptors.add(REFERENCE_GRAPH_CHECK_INTERVAL);
         descriptors = Collections.unmodifiableList(descriptors);
 
         relationships = new HashSet<>();
@@ -115,40 +246,160 @@ public class SparqlConstructProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        if (STEP_QUERY.matcher(propertyDescriptorName).matches()) {
+            return new PropertyDescriptor.Builder()
+                    .name(propertyDescriptorName)
+                    .description("A SPARQL CONSTRUCT or UPDATE query, run after the steps with a lower number.")
+                    .dynamic(true)
+                    .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                    .build();
+        }
+        if (STEP_MODE.matcher(propertyDescriptorName).matches()) {
+            return new PropertyDescriptor.Builder()
+                    .name(propertyDescriptorName)
+                    .description("Whether the result of the CONSTRUCT query of the step is added to the graph, or replaces it.")
+                    .dynamic(true)
+                    .allowableValues(INFER, REPLACE_ALL)
+                    .build();
+        }
+        return null;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        for (PropertyDescriptor property : context.getProperties().keySet()) {
+            if (STEP_QUERY.matcher(property.getName()).matches()) {
+                String explanation = null;
+                try {
+                    ParsedOperation parsed = QueryParserUtil.parseOperation(QueryLanguage.SPARQL, context.getProperty(property).getValue(), null);
+                    if (!(parsed instanceof ParsedGraphQuery) && !(parsed instanceof ParsedUpdate))
+                        explanation = "the step is not a CONSTRUCT or UPDATE query";
+                }
+                catch (MalformedQueryException e) {
+                    explanation = "the step is not a valid SPARQL query: " + e.getMessage();
+                }
+                if (explanation != null) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(property.getName())
+                            .valid(false)
+                            .explanation(explanation)
+                            .build());
+                }
+            }
+            Matcher mode = STEP_MODE.matcher(property.getName());
+            if (mode.matches() && !context.getProperties().containsKey(new PropertyDescriptor.Builder().name("step." + mode.group(1)).build())) {
+                results.add(new ValidationResult.Builder()
+                        .subject(property.getName())
+                        .valid(false)
+                        .explanation("there is no step." + mode.group(1) + " query")
+                        .build());
+            }
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        steps = null;
+        patternFilter = null;
+        referenceGraph = null;
+        schemaGraph = null;
+        synchronized (this) {
+            rdfsSchema = null;
+            rdfsSchemaModel = null;
+        }
+        long checkInterval = context.getProperty(REFERENCE_GRAPH_CHECK_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        if (context.getProperty(RDFS_SCHEMA_FILE).isSet())
+            schemaGraph = new ReferenceGraph(Paths.get(context.getProperty(RDFS_SCHEMA_FILE).getValue()), null, checkInterval, getLogger());
+        if (context.getProperty(REFERENCE_GRAPH_FILE).isSet()) {
+            referenceGraph = new ReferenceGraph(
+                    Paths.get(context.getProperty(REFERENCE_GRAPH_FILE).getValue()),
+                    context.getProperty(REFERENCE_GRAPH_NAME).isSet() ? vf.createIRI(context.getProperty(REFERENCE_GRAPH_NAME).getValue()) : null,
+                    checkInterval,
+                    getLogger());
+        }
+
+        // The SPARQL query comes first, followed by the steps in the order of their number.
+        Map<Integer, String> stepNames = new TreeMap<>();
+        for (PropertyDescriptor property : context.getProperties().keySet()) {
+            Matcher step = STEP_QUERY.matcher(property.getName());
+            if (property.isDynamic() && step.matches())
+                stepNames.put(Integer.parseInt(step.group(1)), property.getName());
+        }
+        List<Step> parsedSteps = new ArrayList<>();
+        try {
+            Step query = Step.parse(context.getProperty(SPARQL_QUERY).getValue(), context.getProperty(INFERENCE_MODE).getValue());
+            if (query.query == null) {
+                getLogger().error("The SPARQL query is not a CONSTRUCT query, all FlowFiles will be routed to failure.");
+                return;
+            }
+            parsedSteps.add(query);
+            for (String stepName : stepNames.values()) {
+                String mode = context.getProperty(stepName + ".mode").getValue();
+                Step step = Step.parse(context.getProperty(stepName).getValue(), mode == null ? REPLACE_ALL.getValue() : mode);
+                if (step.query == null && step.update == null) {
+                    getLogger().error("Step {} is not a CONSTRUCT or UPDATE query, all FlowFiles will be routed to failure.", stepName);
+                    return;
+                }
+                parsedSteps.add(step);
+            }
+            // Entailment can derive the statements the query matches from any other statement.
+            if (!query.infer && schemaGraph == null)
+                patternFilter = QueryPatternFilter.forQuery(query.query);
+            steps = parsedSteps;
+        }
+        catch (Exception e) {
+            getLogger().error("Error parsing SPARQL CONSTRUCT query, all FlowFiles will be routed to failure.", e);
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        PooledStore memoryStore;
+        while ((memoryStore = memoryStores.poll()) != null)
+            memoryStore.shutDown();
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
         FlowFile flowFile = session.get();
-        String QUERY = context.getProperty(SPARQL_QUERY).getValue();
 
         if ( flowFile == null ) {
             return;
         }
         StringWriter outputStream = new StringWriter();
         AtomicBoolean executedSuccessfully = new AtomicBoolean(false);
-        session.read(flowFile, new InputStreamCallback() {
-            @Override
-            public void process(InputStream RDFStream) throws IOException {
-                Repository db = new SailRepository(new MemoryStore());
-                try (RepositoryConnection connection = db.getConnection()) {
-                    Model inputModel = Rio.parse(RDFStream, "", RDFFormat.NQUADS);
-
-                    // In infer mode, include the current contents of the flowfile.
-                    if (context.getProperty(INFERENCE_MODE).getValue().equals(INFER.getValue())) {
-                        Rio.write(inputModel, outputStream,RDFFormat.NQUADS);
+        final List<Step> chain = steps;
+        if (chain != null) {
+            // Updates can only be run against a store.
+            final boolean useMemoryStore = context.getProperty(QUERY_EVALUATION).getValue().equals(EVALUATE_MEMORY_STORE.getValue())
+                    || chain.stream().anyMatch(step -> step.update != null);
+            session.read(flowFile, new InputStreamCallback() {
+                @Override
+                public void process(InputStream RDFStream) throws IOException {
+                    try {
+                        Model inputModel = parse(RDFStream);
+                        if (schemaGraph != null)
+                            getRdfsSchema().entail(inputModel);
+                        Model reference = referenceGraph == null ? null : referenceGraph.get();
+                        Model referenceInInput = reference == null ? null : inputModel.stream()
+                                .filter(reference::contains)
+                                .collect(Collectors.toCollection(LinkedHashModel::new));
+                        Model outputModel = useMemoryStore ? transformInMemoryStore(inputModel, reference, chain) : transformModel(inputModel, reference, chain);
+                        if (reference != null)
+                            outputModel = withoutReference(outputModel, reference, referenceInInput);
+                        Rio.write(outputModel, outputStream, RDFFormat.NQUADS);
+                        executedSuccessfully.set(true);
+                    }
+                    catch (Exception e) {
+                        getLogger().error("Error executing SPARQL CONSTRUCT query.");
                     }
-
-                    connection.add(inputModel);
-                    GraphQuery query = connection.prepareGraphQuery(QUERY);
-
-                    RDFHandler quadsWriter = Rio.createWriter(RDFFormat.NQUADS, outputStream);
-                    query.evaluate(quadsWriter);
-                    executedSuccessfully.set(true);
-                }
-                catch (Exception e) {
-                    getLogger().error("Error executing SPARQL CONSTRUCT query.");
                 }
-            }
-        });
+            });
+        }
         if (executedSuccessfully.get()) {
             flowFile = session.write(flowFile, out -> out.write(outputStream.toString().getBytes()));
             session.transfer(flowFile, SUCCESS);
@@ -157,4 +408,234 @@ public class SparqlConstructProcessor extends AbstractProcessor {
             session.transfer(flowFile, FAILURE);
         }
     }
+
+    /**
+     * Parses the contents of a flowfile, discarding the statements the query can't match.
+     */
+    private Model parse(InputStream RDFStream) throws IOException {
+        QueryPatternFilter filter = patternFilter;
+        if (filter == null)
+            return Rio.parse(RDFStream, "", RDFFormat.NQUADS);
+        return filter.parse(RDFStream);
+    }
+
+    /**
+     * @return The closure of the RDFS schema, which is computed again when the schema file changed.
+     */
+    private synchronized RdfsSchema getRdfsSchema() throws IOException {
+        Model schemaModel = schemaGraph.get();
+        if (schemaModel != rdfsSchemaModel) {
+            rdfsSchema = new RdfsSchema(schemaModel);
+            rdfsSchemaModel = schemaModel;
+        }
+        return rdfsSchema;
+    }
+
+    /**
+     * Runs the steps directly over the parsed contents of a flowfile.
+     *
+     * @param inputModel The contents of the flowfile, which are modified in infer mode.
+     * @param reference The reference graph, or null.
+     * @param chain The steps, which are all CONSTRUCT queries.
+     * @return The graph after the last step.
+     */
+    private static Model transformModel(Model inputModel, Model reference, List<Step> chain) {
+        Model graph = inputModel;
+        for (Step step : chain) {
+            Model constructed = new LinkedHashModel();
+            writeConstructResult(new ModelTripleSource(graph, reference).evaluate(step.query), new StatementCollector(constructed));
+            if (step.infer)
+                graph.addAll(constructed);
+            else
+                graph = constructed;
+        }
+        return graph;
+    }
+
+    /**
+     * Runs the steps against a pooled in-memory store, which already holds the reference graph. The contents of the
+     * flowfile are added in a transaction that is rolled back afterwards, so the store is left with the reference graph
+     * only, whatever the steps changed.
+     *
+     * @param inputModel The contents of the flowfile, which are modified in infer mode.
+     * @param reference The reference graph, or null.
+     * @param chain The steps.
+     * @return The graph after the last step.
+     */
+    private Model transformInMemoryStore(Model inputModel, Model reference, List<Step> chain) {
+        PooledStore store = borrowMemoryStore(reference, chain);
+        try {
+            SailRepositoryConnection connection = store.connection;
+            connection.begin();
+            try {
+                connection.add(inputModel);
+                // The graph is tracked next to the store, so it doesn't have to be separated from the reference graph
+                // again, until an update changes the store in an unknown way.
+                Model graph = inputModel;
+                for (Step step : chain) {
+                    if (step.update != null) {
+                        store.updates.get(step).execute();
+                        graph = null;
+                        continue;
+                    }
+                    Model constructed = new LinkedHashModel();
+                    store.queries.get(step).evaluate(new StatementCollector(constructed));
+                    if (step.infer) {
+                        if (graph != null)
+                            graph.addAll(constructed);
+                    }
+                    else {
+                        // Statements of the reference graph stay in the store, for the next steps to read.
+                        Model replaced = graph != null ? graph : export(connection);
+                        connection.remove(replaced.stream()
+                                .filter(statement -> reference == null || !reference.contains(statement))
+                                .collect(Collectors.toList()));
+                        graph = constructed;
+                    }
+                    connection.add(constructed);
+                }
+                return graph != null ? graph : export(connection);
+            }
+            finally {
+                connection.rollback();
+            }
+        }
+        finally {
+            memoryStores.add(store);
+        }
+    }
+
+    private static Model export(RepositoryConnection connection) {
+        Model graph = new LinkedHashModel();
+        connection.export(new StatementCollector(graph));
+        return graph;
+    }
+
+    /**
+     * Leaves the statements of the reference graph out of the result of the steps, unless the flowfile contained them
+     * itself. Both query evaluations give the same result, whether the steps copied reference statements or not.
+     *
+     * @param graph The graph after the last step.
+     * @param reference The reference graph.
+     * @param referenceInInput The statements of the reference graph that were in the flowfile.
+     * @return The result.
+     */
+    private static Model withoutReference(Model graph, Model reference, Model referenceInInput) {
+        return graph.stream()
+                .filter(statement -> !reference.contains(statement) || referenceInInput.contains(statement))
+                .collect(Collectors.toCollection(LinkedHashModel::new));
+    }
+
+    /**
+     * Writes the statements constructed by a query, skipping the ones with a missing or invalid subject, predicate
+     * or object, like a query on a store does.
+     *
+     * @param solutions The solutions of the CONSTRUCT query.
+     * @param handler The handler to write the statements to.
+     */
+    private static void writeConstructResult(CloseableIteration<BindingSet, QueryEvaluationException> solutions, RDFHandler handler) {
+        handler.startRDF();
+        try (solutions) {
+            while (solutions.hasNext()) {
+                BindingSet solution = solutions.next();
+                Value subject = solution.getValue("subject");
+                Value predicate = solution.getValue("predicate");
+                Value object = solution.getValue("object");
+                Value context = solution.getValue("context");
+                if (subject instanceof Resource && predicate instanceof IRI && object != null
+                        && (context == null || context instanceof Resource)) {
+                    handler.handleStatement(vf.createStatement((Resource) subject, (IRI) predicate, object, (Resource) context));
+                }
+            }
+        }
+        handler.endRDF();
+    }
+
+    /**
+     * @param reference The reference graph, or null.
+     * @param chain The steps the store has to run.
+     * @return An initialised in-memory store from the pool, or a new one if none is available, holding the reference
+     * graph. The reference graph is only loaded into a store again when it was reloaded from its file.
+     */
+    private PooledStore borrowMemoryStore(Model reference, List<Step> chain) {
+        PooledStore memoryStore = memoryStores.poll();
+        if (memoryStore != null && memoryStore.chain != chain) {
+            memoryStore.shutDown();
+            memoryStore = null;
+        }
+        if (memoryStore == null)
+            memoryStore = new PooledStore(chain);
+        if (memoryStore.reference != reference) {
+            SailRepositoryConnection connection = memoryStore.connection;
+            connection.begin();
+            connection.clear();
+            if (reference != null)
+                connection.add(reference);
+            connection.commit();
+            memoryStore.reference = reference;
+        }
+        return memoryStore;
+    }
+
+    /**
+     * An in-memory store of the pool, and the reference graph it holds. The store keeps its connection open, with the
+     * steps prepared on it once, so they aren't parsed again for every flowfile.
+     */
+    private static class PooledStore {
+        final SailRepository repository = new SailRepository(new MemoryStore());
+        final SailRepositoryConnection connection;
+        final List<Step> chain;
+        final Map<Step, GraphQuery> queries = new IdentityHashMap<>();
+        final Map<Step, Update> updates = new IdentityHashMap<>();
+        Model reference;
+
+        PooledStore(List<Step> chain) {
+            repository.init();
+            connection = repository.getConnection();
+            this.chain = chain;
+            for (Step step : chain) {
+                if (step.update != null)
+                    updates.put(step, connection.prepareUpdate(step.operation));
+                else
+                    queries.put(step, connection.prepareGraphQuery(step.operation));
+            }
+        }
+
+        void shutDown() {
+            connection.close();
+            repository.shutDown();
+        }
+    }
+
+    /**
+     * A transformation step: a CONSTRUCT query of which the result is added to the graph or replaces it, or an UPDATE
+     * that modifies the graph. The operation is kept as well, for a store to prepare it.
+     */
+    private static class Step {
+        final String operation;
+        final ParsedGraphQuery query;
+        final ParsedUpdate update;
+        final boolean infer;
+
+        private Step(String operation, ParsedGraphQuery query, ParsedUpdate update, boolean infer) {
+            this.operation = operation;
+            this.query = query;
+            this.update = update;
+            this.infer = infer;
+        }
+
+        /**
+         * @param operation The SPARQL query or update.
+         * @param mode The infer or replace mode of a CONSTRUCT query.
+         * @return The step, of which the query and update are null if the operation is neither a CONSTRUCT nor an UPDATE.
+         */
+        static Step parse(String operation, String mode) {
+            ParsedOperation parsed = QueryParserUtil.parseOperation(QueryLanguage.SPARQL, operation, null);
+            return new Step(
+                    operation,
+                    parsed instanceof ParsedGraphQuery ? (ParsedGraphQuery) parsed : null,
+                    parsed instanceof ParsedUpdate ? (ParsedUpdate) parsed : null,
+                    mode.equals(INFER.getValue()));
+        }
+    }
 }
@@ -19,10 +19,21 @@ package be.vlaanderen.informatievlaanderen.processors;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.eclipse.rdf4j.model.Model;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.util.Models;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 
 public class SparqlConstructProcessorTest {
 
@@ -106,4 +117,321 @@ public class SparqlConstructProcessorTest {
 
     }
 
+    /**
+     * Assert that the contents of a FlowFile don't leak into the result of the next FlowFile through a pooled store.
+     */
+    @Test
+    public void testSparqlConstructMultipleFlowFiles() {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty(SparqlConstructProcessor.INFERENCE_MODE, "replace");
+        testRunner.setProperty(SparqlConstructProcessor.QUERY_EVALUATION, "memory store");
+
+        testRunner.enqueue(FlowFileContents);
+        testRunner.enqueue("<http://other-data-in-flowfile/> <http://test/> \"Other source data!\" .\n");
+
+        testRunner.run(2);
+
+        testRunner.assertAllFlowFilesTransferred(SparqlConstructProcessor.SUCCESS, 2);
+        MockFlowFile first = testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(0);
+        MockFlowFile second = testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(1);
+        assert first.getContent().contains("Source data!");
+        assert !first.getContent().contains("Other source data!");
+        assert second.getContent().contains("Other source data!");
+        assert !second.getContent().contains("\"Source data!\"");
+    }
+
+    public final String QuadContents = """
+        <http://a/> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://Person/> .
+        <http://a/> <http://name/> _:name .
+        _:name <http://value/> "Name" .
+        <http://b/> <http://name/> "Other name" <http://graph/> .
+        <http://b/> <http://knows/> <http://a/> <http://graph/> .
+        """;
+
+    /**
+     * Assert that evaluating the queries over the model gives the same result as evaluating them against a memory store.
+     */
+    @Test
+    public void testSparqlConstructQueryEvaluationModes() throws IOException {
+        String[] queries = {
+                "CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }",
+                "CONSTRUCT { ?s <http://label/> ?label } WHERE { ?s ?p ?o OPTIONAL { ?s <http://missing/> ?label } }",
+                "CONSTRUCT { ?s <http://label/> ?label } WHERE { ?s <http://name/> ?name OPTIONAL { ?name <http://value/> ?label } }",
+                "CONSTRUCT { ?s ?p ?o } WHERE { GRAPH <http://graph/> { ?s ?p ?o } }",
+                "CONSTRUCT { _:node <http://about/> ?s } WHERE { ?s a <http://Person/> }",
+                "CONSTRUCT { ?o <http://known-by/> ?s } WHERE { ?s <http://knows/>/<http://name/> ?o }",
+        };
+        for (String query : queries) {
+            for (String mode : new String[]{"infer", "replace"}) {
+                Model model = runQueryEvaluation("model", query, mode);
+                Model memoryStore = runQueryEvaluation("memory store", query, mode);
+                assert Models.isomorphic(model, memoryStore) : query + " in " + mode + " mode";
+            }
+        }
+    }
+
+    private Model runQueryEvaluation(String evaluation, String query, String mode) throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty(SparqlConstructProcessor.QUERY_EVALUATION, evaluation);
+        testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, query);
+        testRunner.setProperty(SparqlConstructProcessor.INFERENCE_MODE, mode);
+
+        testRunner.enqueue(QuadContents);
+
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(SparqlConstructProcessor.SUCCESS, 1);
+        String content = testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(0).getContent();
+        return Rio.parse(new StringReader(content), "", RDFFormat.NQUADS);
+    }
+
+    /**
+     * Assert that discarding the statements the query can't match doesn't change the result.
+     */
+    @Test
+    public void testSparqlConstructPatternFilter() {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty(SparqlConstructProcessor.INFERENCE_MODE, "replace");
+        testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, """
+                CONSTRUCT { ?s <http://result/> ?name }
+                WHERE {
+                  ?s a <http://Person/> ;
+                     <http://name/>/<http://value/> ?name .
+                }
+                """);
+
+        testRunner.enqueue("""
+                <http://a/> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://Person/> .
+                <http://a/> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://Agent/> .
+                <http://a/> <http://name/> _:name .
+                _:name <http://value/> "Person name" .
+                <http://b/> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://Organisation/> .
+                <http://b/> <http://name/> _:other .
+                _:other <http://value/> "Organisation name" .
+                <http://a/> <http://age/> "42" .
+                """);
+
+        testRunner.run();
+
+        MockFlowFile f = testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(0);
+        assert f.getContent().equals("<http://a/> <http://result/> \"Person name\" .\n");
+    }
+
+    /**
+     * Assert that the steps are run in order against the result of the previous step.
+     */
+    @Test
+    public void testSparqlConstructSteps() {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty(SparqlConstructProcessor.INFERENCE_MODE, "replace");
+        testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, """
+                CONSTRUCT { ?s <http://step-0/> ?o } WHERE { ?s <http://test/> ?o }
+                """);
+        testRunner.setProperty("step.10", """
+                DELETE { ?s <http://step-1/> ?o } INSERT { ?s <http://step-10/> ?o } WHERE { ?s <http://step-1/> ?o }
+                """);
+        testRunner.setProperty("step.1", """
+                CONSTRUCT { ?s <http://step-1/> ?o } WHERE { ?s <http://step-0/> ?o }
+                """);
+        testRunner.setProperty("step.1.mode", "infer");
+
+        testRunner.enqueue(FlowFileContents);
+
+        testRunner.run();
+
+        MockFlowFile f = testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(0);
+        assert !f.getContent().contains("<http://test/>");
+        assert f.getContent().contains("<http://data-in-flowfile/> <http://step-0/> \"Source data!\" .");
+        assert !f.getContent().contains("<http://step-1/>");
+        assert f.getContent().contains("<http://data-in-flowfile/> <http://step-10/> \"Source data!\" .");
+    }
+
+    /**
+     * Assert that the mode of a step that doesn't exist is invalid.
+     */
+    @Test
+    public void testSparqlConstructStepModeWithoutStep() {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty("step.1.mode", "infer");
+
+        testRunner.assertNotValid();
+    }
+
+    /**
+     * Assert that a step that isn't a valid CONSTRUCT or UPDATE query is invalid.
+     */
+    @Test
+    public void testSparqlConstructInvalidStep() {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty("step.1", InvalidQuery);
+        testRunner.assertNotValid();
+
+        testRunner.setProperty("step.1", "CONSTRUCT { ?s ?p }");
+        testRunner.assertNotValid();
+
+        testRunner.setProperty("step.1", "DELETE WHERE { ?s <http://test/> ?o }");
+        testRunner.assertValid();
+    }
+
+    public final String ReferenceQuery = """
+        CONSTRUCT { ?s <http://label/> ?label }
+        WHERE { ?s <http://test/> ?o . <http://test/> <http://label/> ?label }
+        """;
+
+    private Path writeReferenceGraph(Path directory, String label) throws IOException {
+        Path file = directory.resolve("reference.nt");
+        Files.writeString(file, "<http://test/> <http://label/> \"" + label + "\" .\n");
+        return file;
+    }
+
+    /**
+     * Assert that the queries can read the reference graph, which is not part of the result.
+     */
+    @Test
+    public void testSparqlConstructReferenceGraph(@TempDir Path directory) throws IOException {
+        for (String evaluation : new String[]{"model", "memory store"}) {
+            final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+            testRunner.setProperty(SparqlConstructProcessor.INFERENCE_MODE, "infer");
+            testRunner.setProperty(SparqlConstructProcessor.QUERY_EVALUATION, evaluation);
+            testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, ReferenceQuery);
+            testRunner.setProperty(SparqlConstructProcessor.REFERENCE_GRAPH_FILE, writeReferenceGraph(directory, "Test").toString());
+
+            testRunner.enqueue(FlowFileContents);
+
+            testRunner.run();
+
+            MockFlowFile f = testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(0);
+            assert f.getContent().contains("Source data!");
+            assert f.getContent().contains("<http://data-in-flowfile/> <http://label/> \"Test\" .");
+            assert !f.getContent().contains("<http://test/> <http://label/>");
+        }
+    }
+
+    /**
+     * Assert that both query evaluations leave the same statements of the reference graph out of the result: the ones
+     * the flowfile didn't contain itself.
+     */
+    @Test
+    public void testSparqlConstructReferenceGraphCopiedByQuery(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("reference.nt");
+        Files.writeString(file, """
+                <http://test/> <http://label/> "Test" .
+                <http://data-in-flowfile/> <http://label/> "Label in both" .
+                """);
+        for (String evaluation : new String[]{"model", "memory store"}) {
+            final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+            testRunner.setProperty(SparqlConstructProcessor.QUERY_EVALUATION, evaluation);
+            testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, "CONSTRUCT {?s ?p ?o} WHERE {?s ?p ?o}");
+            testRunner.setProperty(SparqlConstructProcessor.REFERENCE_GRAPH_FILE, file.toString());
+
+            testRunner.enqueue(FlowFileContents + "<http://data-in-flowfile/> <http://label/> \"Label in both\" .\n");
+
+            testRunner.run();
+
+            String content = testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(0).getContent();
+            assert content.lines().count() == 2 : evaluation;
+            assert content.contains("Source data!") : evaluation;
+            assert content.contains("Label in both") : evaluation;
+        }
+    }
+
+    /**
+     * Assert that a pooled store still holds the complete reference graph after an update removed statements from it.
+     */
+    @Test
+    public void testSparqlConstructReferenceGraphAfterUpdate(@TempDir Path directory) throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty(SparqlConstructProcessor.INFERENCE_MODE, "infer");
+        testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, ReferenceQuery);
+        testRunner.setProperty(SparqlConstructProcessor.REFERENCE_GRAPH_FILE, writeReferenceGraph(directory, "Test").toString());
+        testRunner.setProperty("step.1", "DELETE WHERE { <http://test/> <http://label/> ?label }");
+
+        testRunner.enqueue(FlowFileContents);
+        testRunner.enqueue(FlowFileContents);
+
+        testRunner.run(2);
+
+        testRunner.assertAllFlowFilesTransferred(SparqlConstructProcessor.SUCCESS, 2);
+        for (MockFlowFile f : testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS))
+            assert f.getContent().contains("<http://data-in-flowfile/> <http://label/> \"Test\" .");
+    }
+
+    /**
+     * Assert that the reference graph is loaded again when the file changes.
+     */
+    @Test
+    public void testSparqlConstructReferenceGraphReload(@TempDir Path directory) throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, ReferenceQuery);
+        Path file = writeReferenceGraph(directory, "First");
+        testRunner.setProperty(SparqlConstructProcessor.REFERENCE_GRAPH_FILE, file.toString());
+        testRunner.setProperty(SparqlConstructProcessor.REFERENCE_GRAPH_CHECK_INTERVAL, "0 sec");
+
+        testRunner.enqueue(FlowFileContents);
+        testRunner.run(1, false, true);
+        writeReferenceGraph(directory, "Second");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+        testRunner.enqueue(FlowFileContents);
+        testRunner.run(1, true, false);
+
+        assert testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(0).getContent().contains("First");
+        assert testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(1).getContent().contains("Second");
+    }
+
+    /**
+     * Assert that the reference graph file isn't checked for changes again within the check interval.
+     */
+    @Test
+    public void testSparqlConstructReferenceGraphCheckInterval(@TempDir Path directory) throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, ReferenceQuery);
+        Path file = writeReferenceGraph(directory, "First");
+        testRunner.setProperty(SparqlConstructProcessor.REFERENCE_GRAPH_FILE, file.toString());
+        testRunner.setProperty(SparqlConstructProcessor.REFERENCE_GRAPH_CHECK_INTERVAL, "1 hour");
+
+        testRunner.enqueue(FlowFileContents);
+        testRunner.run(1, false, true);
+        writeReferenceGraph(directory, "Second");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+        testRunner.enqueue(FlowFileContents);
+        testRunner.run(1, true, false);
+
+        assert testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(1).getContent().contains("First");
+    }
+
+    /**
+     * Assert that the contents of a FlowFile are extended with what they entail under the RDFS schema.
+     */
+    @Test
+    public void testSparqlConstructRdfsSchema(@TempDir Path directory) throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlConstructProcessor());
+        Path schema = directory.resolve("schema.ttl");
+        Files.writeString(schema, """
+                @prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .
+                <http://Dog/> rdfs:subClassOf <http://Mammal/> .
+                <http://Mammal/> rdfs:subClassOf <http://Animal/> .
+                <http://owner/> rdfs:subPropertyOf <http://related/> ;
+                    rdfs:range <http://Person/> .
+                <http://related/> rdfs:domain <http://Thing/> .
+                """);
+        testRunner.setProperty(SparqlConstructProcessor.RDFS_SCHEMA_FILE, schema.toString());
+        testRunner.setProperty(SparqlConstructProcessor.SPARQL_QUERY, """
+                CONSTRUCT { ?s ?p ?o } WHERE { ?s a <http://Animal/> ; ?p ?o }
+                """);
+
+        testRunner.enqueue("""
+                <http://rex/> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://Dog/> .
+                <http://rex/> <http://owner/> <http://alice/> .
+                """);
+
+        testRunner.run();
+
+        String content = testRunner.getFlowFilesForRelationship(SparqlConstructProcessor.SUCCESS).get(0).getContent();
+        for (String type : new String[]{"Dog", "Mammal", "Animal", "Thing"})
+            assert content.contains("<http://rex/> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://" + type + "/> .");
+        assert content.contains("<http://rex/> <http://related/> <http://alice/> .");
+        assert !content.contains("rdf-schema#");
+        assert content.lines().count() == 6;
+    }
+
 }
@@ -18,6 +18,8 @@ package be.vlaanderen.informatievlaanderen.processors;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
@@ -30,12 +32,15 @@ import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
 import org.eclipse.rdf4j.model.*;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.query.*;
-import org.eclipse.rdf4j.repository.Repository;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
 import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.repository.sail.SailRepositoryConnection;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFHandler;
 import org.eclipse.rdf4j.rio.Rio;
@@ -45,7 +50,10 @@ import org.eclipse.rdf4j.sparqlbuilder.core.query.SelectQuery;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -62,6 +70,51 @@ public class SparqlSelectProcessor extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final AllowableValue EVALUATE_MODEL = new AllowableValue(
+            "model",
+            "Model",
+            "The query is evaluated directly over the parsed contents of the flowfile."
+    );
+    public static final AllowableValue EVALUATE_MEMORY_STORE = new AllowableValue(
+            "memory store",
+            "Memory store",
+            "The contents of the flowfile are loaded into an in-memory store, against which the query is evaluated."
+    );
+    public static final PropertyDescriptor QUERY_EVALUATION = new PropertyDescriptor
+            .Builder().name("QUERY_EVALUATION")
+            .displayName("Query evaluation")
+            .required(true)
+            .allowableValues(EVALUATE_MODEL, EVALUATE_MEMORY_STORE)
+            .defaultValue(EVALUATE_MEMORY_STORE.getValue())
+            .build();
+
+    public static final PropertyDescriptor REFERENCE_GRAPH_FILE = new PropertyDescriptor
+            .Builder().name("REFERENCE_GRAPH_FILE")
+            .displayName("Reference graph file")
+            .description("An RDF file, such as a code list or an ontology, that the query can read as if its statements were in every flowfile. "
+                    + "It is kept in memory, and loaded again when it changes.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor REFERENCE_GRAPH_NAME = new PropertyDescriptor
+            .Builder().name("REFERENCE_GRAPH_NAME")
+            .displayName("Reference graph name")
+            .description("The named graph to put the statements of the reference graph file in. By default, they keep their own graph.")
+            .required(false)
+            .addValidator(StandardValidators.URI_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor REFERENCE_GRAPH_CHECK_INTERVAL = new PropertyDescriptor
+            .Builder().name("REFERENCE_GRAPH_CHECK_INTERVAL")
+            .displayName("Reference graph check interval")
+            .description("How often the reference graph file is checked for changes. In between, "
+                    + "the contents loaded before are used without touching the file system.")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
     public static final Relationship SUCCESS = new Relationship.Builder()
             .name("SUCCESS")
             .description("Success relationship")
@@ -76,10 +129,40 @@ public class SparqlSelectProcessor extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    /**
+     * The query, parsed once when the processor is scheduled. Null if the query isn't a valid SELECT query.
+     */
+    private volatile ParsedTupleQuery parsedQuery;
+
+    /**
+     * The query as it is configured, for a memory store to prepare it.
+     */
+    private volatile String query;
+
+    /**
+     * Discards the statements the query can't match while parsing. Null if the query can match any statement.
+     */
+    private volatile QueryPatternFilter patternFilter;
+
+    /**
+     * The reference graph the query can read, or null.
+     */
+    private volatile ReferenceGraph referenceGraph;
+
+    /**
+     * Initialised in-memory stores, which only hold the reference graph in between FlowFiles. There are never more
+     * stores than concurrent tasks.
+     */
+    private final Queue<PooledStore> memoryStores = new ConcurrentLinkedQueue<>();
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         descriptors = new ArrayList<>();
         descriptors.add(SPARQL_QUERY);
+        descriptors.add(QUERY_EVALUATION);
+        descriptors.add(REFERENCE_GRAPH_FILE);
+        descriptors.add(REFERENCE_GRAPH_NAME);
+        descriptors.add(REFERENCE_GRAPH_CHECK_INTERVAL);
         descriptors = Collections.unmodifiableList(descriptors);
 
         relationships = new HashSet<>();
@@ -98,10 +181,43 @@ public class SparqlSelectProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        parsedQuery = null;
+        query = context.getProperty(SPARQL_QUERY).getValue();
+        patternFilter = null;
+        referenceGraph = null;
+        if (context.getProperty(REFERENCE_GRAPH_FILE).isSet()) {
+            referenceGraph = new ReferenceGraph(
+                    Paths.get(context.getProperty(REFERENCE_GRAPH_FILE).getValue()),
+                    context.getProperty(REFERENCE_GRAPH_NAME).isSet() ? vf.createIRI(context.getProperty(REFERENCE_GRAPH_NAME).getValue()) : null,
+                    context.getProperty(REFERENCE_GRAPH_CHECK_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS),
+                    getLogger());
+        }
+        try {
+            ParsedQuery parsed = QueryParserUtil.parseQuery(QueryLanguage.SPARQL, query, null);
+            if (parsed instanceof ParsedTupleQuery) {
+                parsedQuery = (ParsedTupleQuery) parsed;
+                patternFilter = QueryPatternFilter.forQuery(parsed);
+            }
+            else
+                getLogger().error("The SPARQL query is not a SELECT query, all FlowFiles will be routed to failure.");
+        }
+        catch (Exception e) {
+            getLogger().error("Error parsing SPARQL SELECT query, all FlowFiles will be routed to failure.", e);
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        PooledStore memoryStore;
+        while ((memoryStore = memoryStores.poll()) != null)
+            memoryStore.shutDown();
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
         FlowFile flowFile = session.get();
-        String QUERY = context.getProperty(SPARQL_QUERY).getValue();
         StringWriter outputStream = new StringWriter();
 
         if ( flowFile == null ) {
@@ -109,35 +225,33 @@ public class SparqlSelectProcessor extends AbstractProcessor {
         }
 
         AtomicBoolean executedSuccessfully = new AtomicBoolean(false);
-        session.read(flowFile, new InputStreamCallback() {
-            @Override
-            public void process(InputStream RDFStream) throws IOException {
-                Repository db = new SailRepository(new MemoryStore());
-                try (RepositoryConnection connection = db.getConnection()) {
-                    Model inputModel = Rio.parse(RDFStream, "", RDFFormat.NQUADS);
-
-                    connection.add(inputModel);
-                    TupleQuery query = connection.prepareTupleQuery(QUERY);
-                    JsonArray outerJsonArray = new JsonArray();
-                    try (TupleQueryResult result = query.evaluate()) {
-                        while (result.hasNext()) { // iterate over the result
-                            JsonObject jsonObject = new JsonObject();
-                            BindingSet bindingSet = result.next();
-                            bindingSet.getBindingNames().forEach((key) -> {
-                                Value objValue = bindingSet.getValue(key);
-                                jsonObject.addProperty(key, objValue.stringValue());
-                            });
-                            outerJsonArray.add(jsonObject);
+        final boolean useMemoryStore = context.getProperty(QUERY_EVALUATION).getValue().equals(EVALUATE_MEMORY_STORE.getValue());
+        if (parsedQuery != null) {
+            session.read(flowFile, new InputStreamCallback() {
+                @Override
+                public void process(InputStream RDFStream) throws IOException {
+                    try {
+                        QueryPatternFilter filter = patternFilter;
+                        Model inputModel = filter == null ? Rio.parse(RDFStream, "", RDFFormat.NQUADS) : filter.parse(RDFStream);
+                        Model reference = referenceGraph == null ? null : referenceGraph.get();
+
+                        JsonArray outerJsonArray;
+                        if (useMemoryStore)
+                            outerJsonArray = selectInMemoryStore(inputModel, reference);
+                        else {
+                            try (CloseableIteration<BindingSet, QueryEvaluationException> result = new ModelTripleSource(inputModel, reference).evaluate(parsedQuery)) {
+                                outerJsonArray = toJson(result);
+                            }
                         }
+                        outputStream.write(outerJsonArray.toString());
+                        executedSuccessfully.set(true);
+                    }
+                    catch (Exception e) {
+                        getLogger().error("Error executing SPARQL SELECT query.");
                     }
-                    outputStream.write(outerJsonArray.toString());
-                    executedSuccessfully.set(true);
-                }
-                catch (Exception e) {
-                    getLogger().error("Error executing SPARQL SELECT query.");
                 }
-            }
-        });
+            });
+        }
         if (executedSuccessfully.get()) {
             flowFile = session.write(flowFile, out -> out.write(outputStream.toString().getBytes()));
             session.transfer(flowFile, SUCCESS);
@@ -146,4 +260,102 @@ public class SparqlSelectProcessor extends AbstractProcessor {
             session.transfer(flowFile, FAILURE);
         }
     }
+
+    /**
+     * Evaluates the query against a pooled in-memory store, which already holds the reference graph. The contents of
+     * the flowfile are added in a transaction that is rolled back afterwards.
+     *
+     * @param inputModel The contents of the flowfile.
+     * @param reference The reference graph, or null.
+     * @return The solutions of the query.
+     */
+    private JsonArray selectInMemoryStore(Model inputModel, Model reference) {
+        PooledStore store = borrowMemoryStore(reference, query);
+        try {
+            SailRepositoryConnection connection = store.connection;
+            connection.begin();
+            try {
+                connection.add(inputModel);
+                try (TupleQueryResult result = store.query.evaluate()) {
+                    return toJson(result);
+                }
+            }
+            finally {
+                connection.rollback();
+            }
+        }
+        finally {
+            memoryStores.add(store);
+        }
+    }
+
+    /**
+     * @param result The solutions of the query.
+     * @return A JSON object per solution. The bindings are written in the order of the projection, unbound ones are left out.
+     */
+    private JsonArray toJson(CloseableIteration<BindingSet, QueryEvaluationException> result) {
+        Set<String> bindingNames = parsedQuery.getTupleExpr().getBindingNames();
+        JsonArray outerJsonArray = new JsonArray();
+        while (result.hasNext()) { // iterate over the result
+            JsonObject jsonObject = new JsonObject();
+            BindingSet bindingSet = result.next();
+            bindingNames.forEach((key) -> {
+                Value objValue = bindingSet.getValue(key);
+                if (objValue != null)
+                    jsonObject.addProperty(key, objValue.stringValue());
+            });
+            outerJsonArray.add(jsonObject);
+        }
+        return outerJsonArray;
+    }
+
+    /**
+     * @param reference The reference graph, or null.
+     * @param query The query the store has to evaluate.
+     * @return An initialised in-memory store from the pool, or a new one if none is available, holding the reference
+     * graph. The reference graph is only loaded into a store again when it was reloaded from its file.
+     */
+    private PooledStore borrowMemoryStore(Model reference, String query) {
+        PooledStore memoryStore = memoryStores.poll();
+        if (memoryStore != null && !memoryStore.operation.equals(query)) {
+            memoryStore.shutDown();
+            memoryStore = null;
+        }
+        if (memoryStore == null)
+            memoryStore = new PooledStore(query);
+        if (memoryStore.reference != reference) {
+            SailRepositoryConnection connection = memoryStore.connection;
+            connection.begin();
+            connection.clear();
+            if (reference != null)
+                connection.add(reference);
+            connection.commit();
+            memoryStore.reference = reference;
+        }
+        return memoryStore;
+    }
+
+    /**
+     * An in-memory store of the pool, and the reference graph it holds. The store keeps its connection open, with the
+     * query prepared on it once, so it isn't parsed again for every flowfile.
+     */
+    private static class PooledStore {
+        final SailRepository repository = new SailRepository(new MemoryStore());
+        final SailRepositoryConnection connection;
+        final String operation;
+        final TupleQuery query;
+        Model reference;
+
+        PooledStore(String operation) {
+            repository.init();
+            connection = repository.getConnection();
+            this.operation = operation;
+            query = connection.prepareTupleQuery(operation);
+        }
+
+        void shutDown() {
+            connection.close();
+            repository.shutDown();
+        }
+    }
 }
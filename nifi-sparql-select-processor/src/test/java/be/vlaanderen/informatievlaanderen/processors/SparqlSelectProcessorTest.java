@@ -16,6 +16,8 @@
  */
 package be.vlaanderen.informatievlaanderen.processors;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -23,6 +25,13 @@ import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
 
 public class SparqlSelectProcessorTest {
 
@@ -84,4 +93,90 @@ public class SparqlSelectProcessorTest {
 
     }
 
+    public final String OptionalQuery = """
+            SELECT ?x ?nickname
+            WHERE {
+                ?x <http://www.w3.org/2001/vcard-rdf/3.0#FN> ?fname .
+                OPTIONAL { ?x <http://www.w3.org/2001/vcard-rdf/3.0#NICKNAME> ?nickname }
+            }
+            """;
+
+    public final String Nickname = """
+            <http://somewhere/JohnSmith/> <http://www.w3.org/2001/vcard-rdf/3.0#NICKNAME> "Johnny" .
+            """;
+
+    /**
+     * Assert that unbound variables are left out of the objects when the query is evaluated over the model.
+     */
+    @Test
+    public void testSparqlSelectUnboundVariables() {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlSelectProcessor());
+        testRunner.setProperty(SparqlSelectProcessor.QUERY_EVALUATION, "model");
+        testRunner.setProperty(SparqlSelectProcessor.SPARQL_QUERY, OptionalQuery);
+
+        testRunner.enqueue(FlowFileContents + Nickname);
+
+        testRunner.run();
+
+        MockFlowFile f = testRunner.getFlowFilesForRelationship(SparqlSelectProcessor.SUCCESS).get(0);
+        assert f.getContent().equals("[{\"x\":\"http://somewhere/MattJones/\"},{\"x\":\"http://somewhere/RebeccaSmith/\"},{\"x\":\"http://somewhere/JohnSmith/\",\"nickname\":\"Johnny\"},{\"x\":\"http://somewhere/SarahJones/\"}]");
+    }
+
+    /**
+     * Assert that evaluating the query over the model gives the same solutions as evaluating it against a memory store.
+     */
+    @Test
+    public void testSparqlSelectQueryEvaluationModes() {
+        for (String query : new String[]{SelectQuery, OptionalQuery}) {
+            assert runQueryEvaluation("model", query).equals(runQueryEvaluation("memory store", query)) : query;
+        }
+    }
+
+    private Set<JsonElement> runQueryEvaluation(String evaluation, String query) {
+        final TestRunner testRunner = TestRunners.newTestRunner(new SparqlSelectProcessor());
+        testRunner.setProperty(SparqlSelectProcessor.QUERY_EVALUATION, evaluation);
+        testRunner.setProperty(SparqlSelectProcessor.SPARQL_QUERY, query);
+
+        testRunner.enqueue(FlowFileContents + Nickname);
+
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(SparqlSelectProcessor.SUCCESS, 1);
+        String content = testRunner.getFlowFilesForRelationship(SparqlSelectProcessor.SUCCESS).get(0).getContent();
+        Set<JsonElement> solutions = new HashSet<>();
+        JsonParser.parseString(content).getAsJsonArray().forEach(solutions::add);
+        assert solutions.size() == 4;
+        return solutions;
+    }
+
+    /**
+     * Assert that the query can read the reference graph.
+     */
+    @Test
+    public void testSparqlSelectReferenceGraph(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("reference.ttl");
+        Files.writeString(file, Nickname);
+        for (String evaluation : new String[]{"model", "memory store"}) {
+            final TestRunner testRunner = TestRunners.newTestRunner(new SparqlSelectProcessor());
+            testRunner.setProperty(SparqlSelectProcessor.QUERY_EVALUATION, evaluation);
+            testRunner.setProperty(SparqlSelectProcessor.REFERENCE_GRAPH_FILE, file.toString());
+            testRunner.setProperty(SparqlSelectProcessor.REFERENCE_GRAPH_NAME, "http://nicknames/");
+            testRunner.setProperty(SparqlSelectProcessor.SPARQL_QUERY, """
+                    SELECT ?fname ?nickname
+                    WHERE {
+                        ?x <http://www.w3.org/2001/vcard-rdf/3.0#FN> ?fname .
+                        GRAPH <http://nicknames/> { ?x <http://www.w3.org/2001/vcard-rdf/3.0#NICKNAME> ?nickname }
+                    }
+                    """);
+
+            testRunner.enqueue(FlowFileContents);
+            testRunner.enqueue(FlowFileContents);
+
+            testRunner.run(2);
+
+            for (MockFlowFile f : testRunner.getFlowFilesForRelationship(SparqlSelectProcessor.SUCCESS))
+                assert f.getContent().equals("[{\"fname\":\"John Smith\",\"nickname\":\"Johnny\"}]") : evaluation;
+        }
+    }
+
 }